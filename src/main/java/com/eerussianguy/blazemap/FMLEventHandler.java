@@ -1,11 +1,13 @@
 package com.eerussianguy.blazemap;
 
+import net.minecraftforge.client.event.RegisterClientReloadListenersEvent;
 import net.minecraftforge.eventbus.api.IEventBus;
 import net.minecraftforge.fml.event.config.ModConfigEvent;
 import net.minecraftforge.fml.event.lifecycle.FMLClientSetupEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
 
 import com.eerussianguy.blazemap.feature.IngameOverlays;
+import com.eerussianguy.blazemap.feature.mapping.BlockStateColorTable;
 
 
 public class FMLEventHandler {
@@ -15,6 +17,7 @@ public class FMLEventHandler {
 
         bus.addListener(FMLEventHandler::clientSetup);
         bus.addListener(FMLEventHandler::onConfigReload);
+        bus.addListener(FMLEventHandler::registerReloadListeners);
     }
 
     private static void clientSetup(final FMLClientSetupEvent event) {
@@ -24,4 +27,8 @@ public class FMLEventHandler {
     private static void onConfigReload(ModConfigEvent.Reloading event) {
         IngameOverlays.reload();
     }
+
+    private static void registerReloadListeners(RegisterClientReloadListenersEvent event) {
+        event.registerReloadListener(BlockStateColorTable.INSTANCE);
+    }
 }
@@ -60,9 +60,17 @@ public class BlazeRegistry<T> {
         return orderedKeysView;
     }
 
+    /** Position of the key in registration order, or -1 if it isn't registered. Stable once the registry is frozen. */
+    public int indexOf(Key<? extends T> key) {
+        return orderedKeys.indexOf(key);
+    }
+
     public void freeze() {
         if(frozen) throw new IllegalStateException("Registry is already frozen!");
         this.frozen = true;
+        for(int i = 0; i < orderedKeys.size(); i++) {
+            orderedKeys.get(i).ordinal = i;
+        }
     }
 
     public boolean isFrozen() {
@@ -77,6 +85,7 @@ public class BlazeRegistry<T> {
         private final BlazeRegistry<T> registry;
         public final ResourceLocation location;
         private T cached = null;
+        private int ordinal = -1;
 
         public Key(BlazeRegistry<T> registry, String path) {
             this(registry, new ResourceLocation(path));
@@ -100,6 +109,19 @@ public class BlazeRegistry<T> {
             return value;
         }
 
+        /**
+         * Dense index of this key in its registry (registration order), for array lookups and bitmasks.
+         * Stable and cached once the registry is frozen, -1 for keys that were never registered.
+         */
+        public int ordinal() {
+            if(ordinal >= 0)
+                return ordinal;
+            int index = registry.indexOf(this);
+            if(registry.isFrozen())
+                ordinal = index;
+            return index;
+        }
+
         @Override
         public boolean equals(Object o) {
             if(o instanceof Key k) {
@@ -8,6 +8,9 @@ import com.eerussianguy.blazemap.api.pipeline.DataType;
 import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
 
 public class TerrainSlopeMD extends MasterDatum {
+    /** Slopes are kept in steps of 1/1024, far finer than any shading they end up as, so they can be stored as ints. */
+    private static final float STEPS = 1024;
+
     public final float[][] slopemap;
 
     public TerrainSlopeMD(float[][] slopemap) {
@@ -24,4 +27,17 @@ public class TerrainSlopeMD extends MasterDatum {
         TerrainSlopeMD other = (TerrainSlopeMD) md;
         return Arrays.equals(this.slopemap, other.slopemap, Arrays::compare);
     }
+
+    /** Round a slope to the closest step, collectors should do this before building the datum. */
+    public static float quantize(float slope) {
+        return fromSteps(toSteps(slope));
+    }
+
+    public static int toSteps(float slope) {
+        return Math.round(slope * STEPS);
+    }
+
+    public static float fromSteps(int steps) {
+        return steps / STEPS;
+    }
 }
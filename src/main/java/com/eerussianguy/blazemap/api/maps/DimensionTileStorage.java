@@ -12,6 +12,9 @@ public interface DimensionTileStorage {
      * It is a 32-bit ABGR image where each pixel represents an NxN square of blocks in world.
      * The exact size of the image depends on the given TileResolution.
      * <br>
+     * This never waits on the disk: if the tile isn't in memory yet the consumer is not called at all. The tile is then
+     * loaded in the background and a tile change is sent for its region once it's ready, so just draw it again then.
+     * <br>
      * <br>
      * <b>  WARNING!  </b><br>
      * <br>
@@ -75,6 +75,15 @@ public abstract class Layer extends NamedMapComponent<Layer> implements Consumer
 
     public abstract boolean renderTile(NativeImage tile, TileResolution resolution, DataSource data, int xGridOffset, int zGridOffset);
 
+    /**
+     * Whether the engine may skip rendering the lower resolutions and make them by averaging the FULL tile's pixels.
+     * That's a lot cheaper and looks the same for anything that's a smooth function of the data. Layers that draw things
+     * averaging would wash out (lines, outlines, icons) should return false to get renderTile called for each resolution.
+     */
+    public boolean supportsDownsampling() {
+        return true;
+    }
+
     /**
      * Used by the World Map (fullscreen map) to display a legend somewhere in the screen (at the layout's discretion)
      * The renderable will be asked to render at its own 0,0 and the height and width are expected to be constant.
@@ -6,12 +6,17 @@ package com.eerussianguy.blazemap.api.maps;
  * every N blocks (see pixelWidth). Instead of loading too much data and displaying it wrong, we can load just as much
  * as we need and at render time generate the proper shrunk images. This takes 33% more disk storage and resources at
  * render time.
+ *
+ * Past SIXTEENTH a pixel covers more than one chunk, so those can't be rendered chunk by chunk like the others. The
+ * engine builds them out of the next finer resolution instead, see chunksPerPixel.
  */
 public enum TileResolution {
-    FULL(1),    // zoom 1,     chunk 16, region 512, size   1 MB, time 4:00
-    HALF(2),    // zoom 0.5,   chunk  8, region 256, size 256 KB, time 2:00
-    QUARTER(4), // zoom 0.25,  chunk  4, region 128, size  64 KB, time 1:00
-    EIGHTH(8);  // zoom 0.125, chunk  2, region  64, size  16 KB, time 0:30
+    FULL(1),          // zoom 1,       chunk  16, region 512, size   1 MB, time 4:00
+    HALF(2),          // zoom 0.5,     chunk   8, region 256, size 256 KB, time 2:00
+    QUARTER(4),       // zoom 0.25,    chunk   4, region 128, size  64 KB, time 1:00
+    EIGHTH(8),        // zoom 0.125,   chunk   2, region  64, size  16 KB, time 0:30
+    SIXTEENTH(16),    // zoom 0.0625,  chunk   1, region  32, size   4 KB, time 0:30
+    THIRTYSECOND(32); // zoom 0.03125, chunk 1/2, region  16, size   1 KB, time 0:30
 
     /**
      * The map zoom value associated with this resolution.
@@ -26,9 +31,17 @@ public enum TileResolution {
 
     /**
      * Width of a chunk, in pixels.
+     * Never less than 1, where a pixel covers several chunks this is the one pixel the chunk is part of.
      */
     public final int chunkWidth;
 
+    /**
+     * How many chunks wide a pixel is, 1 for everything up to SIXTEENTH.
+     * Layers are never asked to render resolutions where this is more than 1, the engine derives them from the finer
+     * ones by averaging.
+     */
+    public final int chunksPerPixel;
+
     /**
      * Width of a region, in pixels.
      * One region is 32 x 32 chunks (1024)
@@ -44,16 +57,18 @@ public enum TileResolution {
     /**
      * Amount of time tiles of this resolution stay in cache.
      * Bigger tiles are cached for longer because they are more expensive to load and there are fewer of them.
+     * The smallest ones still get 30 seconds, a zoomed out map can be showing thousands of them at once.
      */
     public final int cacheTime;
 
     TileResolution(int factor) {
         this.zoom = 1.0 / factor;
         this.pixelWidth = factor;
-        this.chunkWidth = 16 / factor;
-        this.regionWidth = chunkWidth * 32;
+        this.chunkWidth = Math.max(1, 16 / factor);
+        this.chunksPerPixel = Math.max(1, factor / 16);
+        this.regionWidth = 512 / factor;
         this.regionSizeKb = regionWidth * regionWidth / 256;
-        this.cacheTime = 240 / factor;
+        this.cacheTime = Math.max(30, 240 / factor);
     }
 
     public static TileResolution byZoom(double zoom) {
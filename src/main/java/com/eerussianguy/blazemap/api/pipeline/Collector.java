@@ -11,11 +11,13 @@ import net.minecraft.world.level.material.Fluids;
 import com.eerussianguy.blazemap.api.BlazeRegistry.Key;
 import com.eerussianguy.blazemap.api.BlazeRegistry.RegistryEntry;
 import com.eerussianguy.blazemap.lib.Transparency;
+import com.eerussianguy.blazemap.lib.Transparency.BlockComposition;
 import com.eerussianguy.blazemap.lib.Transparency.CompositionState;
 
 /**
  * Collectors collect MasterData from chunks that need updating to be processed later.
- * This operation is executed synchronously in the main game thread.
+ * By default this operation is executed synchronously in the main game thread. Collectors that declare themselves
+ * snapshot safe are instead executed in the data crunching threads, against a LevelSnapshot of the chunk.
  *
  * MasterData is consumed by Layers and Processors asynchronously in the data crunching threads.
  *
@@ -37,6 +39,32 @@ public abstract class Collector<T extends MasterDatum> implements RegistryEntry,
 
     public abstract T collect(Level level, int minX, int minZ, int maxX, int maxZ);
 
+    /**
+     * Same as above, but with access to the ColumnProfile the engine builds once per chunk and shares between all
+     * collectors. Collectors that walk columns down from the heightmap should override this one to use it.
+     */
+    public T collect(Level level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, minX, minZ, maxX, maxZ);
+    }
+
+    /**
+     * Collectors that only need what a LevelSnapshot offers can return true here to get collected off the game thread.
+     * The engine will then call the LevelSnapshot version of collect() instead of the Level ones, from any thread, so
+     * it must not touch the live Level nor shared mutable state (like POS) at all.
+     */
+    public boolean isSnapshotSafe() {
+        return false;
+    }
+
+    /**
+     * The engine only ever calls this for collectors that return true from isSnapshotSafe(), and then never calls the
+     * Level versions. Snapshot safe collectors must override it. By default nothing is collected (null, which the
+     * engine skips), so one that doesn't just produces no data for the chunk.
+     */
+    public T collect(LevelSnapshot level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return null;
+    }
+
     @Override
     public Key<DataType<MasterDatum>> getOutputID() {
         return output;
@@ -47,7 +75,10 @@ public abstract class Collector<T extends MasterDatum> implements RegistryEntry,
         return isSolid(level, state);
     }
     protected static boolean isSolid(Level level, BlockState state) {
-        CompositionState composition = Transparency.getBlockComposition(state, level, POS).getBlockCompositionState();
+        return isSolid(state, Transparency.getBlockComposition(state, level, POS));
+    }
+    protected static boolean isSolid(BlockState state, BlockComposition blockComposition) {
+        CompositionState composition = blockComposition.getBlockCompositionState();
         return !state.getMaterial().isReplaceable() && (composition == CompositionState.BLOCK || composition == CompositionState.FLUIDLOGGED_BLOCK);
     }
 
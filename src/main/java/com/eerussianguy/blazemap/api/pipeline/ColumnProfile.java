@@ -0,0 +1,296 @@
+package com.eerussianguy.blazemap.api.pipeline;
+
+import java.util.Arrays;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.BlockGetter;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+import com.eerussianguy.blazemap.lib.Transparency;
+import com.eerussianguy.blazemap.lib.Transparency.BlockComposition;
+import com.eerussianguy.blazemap.lib.Transparency.CompositionState;
+import com.eerussianguy.blazemap.lib.Transparency.TransparencyState;
+
+/**
+ * Precomputed profile of the 16x16 block columns of one chunk, built once per chunk by the engine (from either the live
+ * Level or a LevelSnapshot) and shared by every collector that runs on it, so the built-in collectors don't each walk the same columns down from the heightmap.
+ *
+ * Every column is walked top-down exactly once: each BlockState and its BlockComposition are read from the level at
+ * most once, and every height below is derived from those. The walk happens lazily the first time anything is asked,
+ * so collectors that don't use the profile cost nothing.
+ *
+ * All coordinates taken by the getters are local to the chunk (0 - 15). Instances are reused from chunk to chunk,
+ * so never keep references to them (or to the states they return) after collect() has returned.
+ */
+public class ColumnProfile {
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+    private BlockGetter blocks;
+    private Level level;
+    private LevelSnapshot snapshot;
+    private int minX, minZ, minBuildHeight;
+    private boolean scanned;
+
+    // Per column results, indexed [z][x] like all our MD
+    private final int[][] heightmap = new int[16][16];
+    private final int[][] floor = new int[16][16];
+    private final int[][] surface = new int[16][16];
+    private final int[][] waterDepth = new int[16][16];
+    private final int[][] opaqueHeight = new int[16][16];
+    private final float[][] coverOpacity = new float[16][16];
+
+    // Transparent stack, flattened: column (z * 16 + x) owns [stackStart, stackStart + stackSize)
+    private final int[] stackStart = new int[256];
+    private final int[] stackSize = new int[256];
+    private int[] stackY = new int[512];
+    private BlockState[] stackStates = new BlockState[512];
+    private BlockComposition[] stackCompositions = new BlockComposition[512];
+    private int stackTotal;
+
+    // Column walk cache, index is (columnTop - y), entries are valid when their stamp matches the current column
+    private BlockState[] states = new BlockState[64];
+    private BlockComposition[] compositions = new BlockComposition[64];
+    private int[] stamps = new int[64];
+    private int stamp, columnTop, columnX, columnZ;
+
+    public ColumnProfile reset(Level level, int minX, int minZ) {
+        this.snapshot = null;
+        this.level = level;
+        return reset((BlockGetter) level, minX, minZ);
+    }
+
+    public ColumnProfile reset(LevelSnapshot snapshot, int minX, int minZ) {
+        this.level = null;
+        this.snapshot = snapshot;
+        return reset((BlockGetter) snapshot, minX, minZ);
+    }
+
+    private ColumnProfile reset(BlockGetter blocks, int minX, int minZ) {
+        this.blocks = blocks;
+        this.minX = minX;
+        this.minZ = minZ;
+        this.minBuildHeight = blocks.getMinBuildHeight();
+        this.scanned = false;
+        return this;
+    }
+
+    /** Drop the level references so a reused profile doesn't keep them alive. */
+    public void release() {
+        this.blocks = null;
+        this.level = null;
+        this.snapshot = null;
+        this.scanned = false;
+        Arrays.fill(stackStates, 0, stackTotal, null);
+        Arrays.fill(stackCompositions, 0, stackTotal, null);
+        stackTotal = 0;
+    }
+
+    /** The MOTION_BLOCKING heightmap value (first air block above the column). */
+    public int getHeightmap(int x, int z) {
+        scan();
+        return heightmap[z][x];
+    }
+
+    /** Height of the terrain under vegetation and fluids. Same as Collector.findSurfaceBelowVegetation(..., false). */
+    public int getFloor(int x, int z) {
+        scan();
+        return floor[z][x];
+    }
+
+    /** Height of the terrain or fluid top under vegetation. Same as Collector.findSurfaceBelowVegetation(..., true). */
+    public int getSurface(int x, int z) {
+        scan();
+        return surface[z][x];
+    }
+
+    /** How many water blocks there are from the surface down. */
+    public int getWaterDepth(int x, int z) {
+        scan();
+        return waterDepth[z][x];
+    }
+
+    /** Height of the highest block that is neither at least semi-transparent nor a non-full block. */
+    public int getOpaqueHeight(int x, int z) {
+        scan();
+        return opaqueHeight[z][x];
+    }
+
+    /** Combined opacity of everything above the opaque height, 1 if there is nothing there. */
+    public float getCoverOpacity(int x, int z) {
+        scan();
+        return coverOpacity[z][x];
+    }
+
+    /**
+     * How many blocks are in the transparent stack of this column: all non-air blocks from the heightmap down, up to
+     * and including the first opaque one (or the bottom of the world). Index 0 is the top.
+     */
+    public int getStackSize(int x, int z) {
+        scan();
+        return stackSize[z * 16 + x];
+    }
+
+    public int getStackY(int x, int z, int index) {
+        return stackY[stackStart[z * 16 + x] + index];
+    }
+
+    public BlockState getStackState(int x, int z, int index) {
+        return stackStates[stackStart[z * 16 + x] + index];
+    }
+
+    public BlockComposition getStackComposition(int x, int z, int index) {
+        return stackCompositions[stackStart[z * 16 + x] + index];
+    }
+
+
+    // =================================================================================================================
+    // Column walk
+    private void scan() {
+        if(scanned) return;
+        scanned = true;
+        stackTotal = 0;
+
+        for(int z = 0; z < 16; z++) {
+            for(int x = 0; x < 16; x++) {
+                columnX = minX + x;
+                columnZ = minZ + z;
+                columnTop = snapshot != null
+                    ? snapshot.getHeight(Heightmap.Types.MOTION_BLOCKING, columnX, columnZ)
+                    : level.getHeight(Heightmap.Types.MOTION_BLOCKING, columnX, columnZ);
+                nextColumn();
+
+                heightmap[z][x] = columnTop;
+                floor[z][x] = findSurfaceBelowVegetation(false);
+                int height = surface[z][x] = findSurfaceBelowVegetation(true);
+                waterDepth[z][x] = findWaterDepth(height);
+                scanTransparentCover(x, z);
+                scanTransparentStack(z * 16 + x);
+            }
+        }
+    }
+
+    private void nextColumn() {
+        if(++stamp == 0) { // Wrapped around, old stamps could come back to life
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    private BlockState state(int y) {
+        int index = columnTop - y;
+        if(index >= states.length) grow(index);
+        if(stamps[index] != stamp) {
+            BlockState state = blocks.getBlockState(pos.set(columnX, y, columnZ));
+            states[index] = state;
+            compositions[index] = null;
+            stamps[index] = stamp;
+            return state;
+        }
+        return states[index];
+    }
+
+    private BlockComposition composition(int y) {
+        BlockState state = state(y);
+        int index = columnTop - y;
+        BlockComposition composition = compositions[index];
+        if(composition == null) {
+            composition = compositions[index] = Transparency.getBlockComposition(state, blocks, pos.set(columnX, y, columnZ));
+        }
+        return composition;
+    }
+
+    private void grow(int index) {
+        int size = Math.max(states.length * 2, index + 1);
+        states = Arrays.copyOf(states, size);
+        compositions = Arrays.copyOf(compositions, size);
+        stamps = Arrays.copyOf(stamps, size);
+    }
+
+    private boolean isSolid(int y) {
+        return Collector.isSolid(state(y), composition(y));
+    }
+
+    // Mirrors Collector.findSurfaceBelowVegetation step by step, including its behavior at the bottom of the world
+    private int findSurfaceBelowVegetation(boolean stopAtFluid) {
+        int height = columnTop - 1;
+        int y = height; // where the current state was read from
+        boolean foundLeaves = false;
+
+        while(Collector.isLeavesOrReplaceable(state(y)) && !(stopAtFluid && Collector.isFluid(state(y)))) {
+            height--;
+            if(height <= minBuildHeight) break;
+            y = height;
+            foundLeaves = true;
+        }
+
+        while(foundLeaves && Collector.isSkippableAfterLeaves(state(y)) && !(stopAtFluid && Collector.isFluid(state(y)))) {
+            height--;
+            if(height <= minBuildHeight) break;
+            y = height;
+        }
+
+        while(!isSolid(y) && !(stopAtFluid && Collector.isFluid(state(y)))) {
+            height--;
+            if(height <= minBuildHeight) break;
+            y = height;
+        }
+
+        return height;
+    }
+
+    private int findWaterDepth(int height) {
+        int depth = 0;
+        while(Collector.isWater(state(height - depth))) {
+            depth++;
+            if(height - depth < minBuildHeight) break;
+        }
+        return depth;
+    }
+
+    private void scanTransparentCover(int x, int z) {
+        int height = columnTop - 1;
+        boolean isTransparent = false;
+        float transparency = 1;
+
+        BlockComposition composition = composition(height);
+        while(height > minBuildHeight && (
+            TransparencyState.isAtLeastAsTransparentAs(composition.getTransparencyState(), TransparencyState.SEMI_TRANSPARENT)
+            || composition.getBlockCompositionState() == CompositionState.NON_FULL_BLOCK
+        )) {
+            isTransparent = true;
+            transparency = transparency * composition.getTransparencyState().transparency;
+            height--;
+            composition = composition(height);
+        }
+
+        opaqueHeight[z][x] = height;
+        coverOpacity[z][x] = isTransparent ? 1 - transparency : 1;
+    }
+
+    private void scanTransparentStack(int column) {
+        stackStart[column] = stackTotal;
+        for(int y = columnTop; y > minBuildHeight; y--) {
+            BlockState state = state(y);
+            if(state.isAir()) continue;
+
+            BlockComposition composition = composition(y);
+            pushStack(y, state, composition);
+            if(composition.getTransparencyState() == TransparencyState.OPAQUE) break;
+        }
+        stackSize[column] = stackTotal - stackStart[column];
+    }
+
+    private void pushStack(int y, BlockState state, BlockComposition composition) {
+        if(stackTotal == stackY.length) {
+            int size = stackTotal * 2;
+            stackY = Arrays.copyOf(stackY, size);
+            stackStates = Arrays.copyOf(stackStates, size);
+            stackCompositions = Arrays.copyOf(stackCompositions, size);
+        }
+        stackY[stackTotal] = y;
+        stackStates[stackTotal] = state;
+        stackCompositions[stackTotal] = composition;
+        stackTotal++;
+    }
+}
@@ -19,6 +19,18 @@ public interface DataType<T extends MasterDatum> extends BlazeRegistry.RegistryE
 
     T deserialize(MinecraftStreams.Input stream) throws IOException;
 
+    /**
+     * Denser encoding used to persist MasterData on disk, where space matters more than on the wire.
+     * Defaults to the regular encoding, override both together if there's something to gain.
+     */
+    default void serializeCompact(MinecraftStreams.Output stream, T datum) throws IOException {
+        serialize(stream, datum);
+    }
+
+    default T deserializeCompact(MinecraftStreams.Input stream) throws IOException {
+        return deserialize(stream);
+    }
+
     default void serialize(FriendlyByteBuf buffer, T datum) {
         MinecraftStreams.Output stream = new MinecraftStreams.Output(new ByteBufOutputStream(buffer));
         try {
@@ -0,0 +1,373 @@
+package com.eerussianguy.blazemap.api.pipeline;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Holder;
+import net.minecraft.core.QuartPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.BlockAndTintGetter;
+import net.minecraft.world.level.BlockGetter;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.ColorResolver;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.LightLayer;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.biome.BiomeManager;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.DataLayer;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.LightChunkGetter;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.lighting.LevelLightEngine;
+import net.minecraft.world.level.material.FluidState;
+
+import com.eerussianguy.blazemap.lib.Transparency;
+import com.eerussianguy.blazemap.lib.Transparency.BlockComposition;
+import com.eerussianguy.blazemap.lib.Transparency.CompositionState;
+import com.eerussianguy.blazemap.lib.Transparency.TransparencyState;
+
+/**
+ * Read-only copy of a chunk and a thin border around it, taken on the game thread so collectors can read it from any
+ * thread afterwards. Copying the section palettes is little more than a few array clones, which is a lot cheaper than
+ * running the collectors themselves on the game thread.
+ *
+ * It behaves like the Level it was taken from for everything collectors normally use: block and fluid states,
+ * heightmaps (WORLD_SURFACE and MOTION_BLOCKING only), build limits, sea level and biome tints (blended like the
+ * client does). Only what the built-in collectors reach is copied: the chunk itself up to its highest non-air section,
+ * and from the neighbours the columns up to BORDER blocks away, from their heightmap down to the first full opaque
+ * block. Biomes reach as far as the blend radius (plus the biome zoom's fuzz) but no higher than the chunk's own top.
+ * Neighbours that weren't loaded, and anything outside of the above, read as void air, and take their biomes from the
+ * closest spot in the chunk itself.
+ * There are no block entities. Light levels are only captured for the chunk itself, everywhere else has full sky light
+ * (where the dimension has any) and no block light. They're read with getBrightness() and the likes, getLightEngine()
+ * is an empty one.
+ *
+ * Nothing in here ever goes back to the level. A snapshot is meant to be read by one thread at a time, as it keeps a
+ * cursor and a tint cache to itself.
+ */
+@SuppressWarnings("unchecked")
+public class LevelSnapshot implements BlockAndTintGetter, BiomeManager.NoiseBiomeSource {
+    private static final BlockState AIR = Blocks.AIR.defaultBlockState();
+    private static final BlockState VOID_AIR = Blocks.VOID_AIR.defaultBlockState();
+    private static final Heightmap.Types[] HEIGHTMAPS = {Heightmap.Types.WORLD_SURFACE, Heightmap.Types.MOTION_BLOCKING};
+
+    /** How many blocks past the chunk edges the block states and heightmaps are kept. The slope collector uses 2. */
+    public static final int BORDER = 2;
+
+    private final int chunkX, chunkZ, minX, minZ;
+    private final int minBuildHeight, height, minSection, seaLevel, blendRadius;
+    private final PalettedContainer<BlockState>[][] blocks = new PalettedContainer[9][];
+    private final PalettedContainer<Holder<Biome>>[][] biomes = new PalettedContainer[9][];
+    private final int[][][] heightmaps = new int[9][][];
+    private final int[] firstSection = new int[9]; // anything below wasn't copied
+    private final BiomeManager biomeManager;
+    private final Holder<Biome> fallbackBiome;
+    private final float[] shades = new float[Direction.values().length * 2];
+    private final DataLayer[] skyLight, blockLight; // center chunk only, null where there was nothing stored
+    private final int minLightSection;
+    private final boolean hasSkyLight;
+
+    private final BlockPos.MutableBlockPos cursor = new BlockPos.MutableBlockPos();
+    private final Map<ColorResolver, int[]> tints = new IdentityHashMap<>(); // per column of the 3x3 chunks, -1 if not done yet
+    private LevelLightEngine lightEngine;
+
+    /** Must be called on the thread that owns the level. */
+    public static LevelSnapshot capture(Level level, ChunkPos pos, int biomeBlendRadius) {
+        return new LevelSnapshot(level, pos, biomeBlendRadius);
+    }
+
+    private LevelSnapshot(Level level, ChunkPos pos, int blendRadius) {
+        this.chunkX = pos.x;
+        this.chunkZ = pos.z;
+        this.minX = pos.getMinBlockX();
+        this.minZ = pos.getMinBlockZ();
+        this.minBuildHeight = level.getMinBuildHeight();
+        this.height = level.getHeight();
+        this.minSection = level.getMinSection();
+        this.seaLevel = level.getSeaLevel();
+        this.blendRadius = blendRadius;
+        this.biomeManager = level.getBiomeManager().withDifferentSource(this);
+        this.fallbackBiome = level.getBiome(pos.getWorldPosition());
+        this.hasSkyLight = level.dimensionType().hasSkyLight();
+
+        for(Direction direction : Direction.values()) {
+            shades[direction.ordinal() * 2] = level.getShade(direction, false);
+            shades[direction.ordinal() * 2 + 1] = level.getShade(direction, true);
+        }
+
+        // Light sections go one past the build limits on either side
+        this.minLightSection = minSection - 1;
+        int lightSections = level.getSectionsCount() + 2;
+        this.skyLight = captureLight(level, LightLayer.SKY, pos, lightSections);
+        this.blockLight = captureLight(level, LightLayer.BLOCK, pos, lightSections);
+
+        // The chunk itself goes first, everything else is cut to its highest section
+        LevelChunk center = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+        int topSection = -1;
+        if(center != null) {
+            int top = minBuildHeight;
+            for(int z = 0; z < 16; z++) {
+                for(int x = 0; x < 16; x++) {
+                    top = Math.max(top, center.getHeight(Heightmap.Types.WORLD_SURFACE, x, z));
+                }
+            }
+            topSection = (top >> 4) - minSection;
+            captureChunk(center, 4, 0, topSection, topSection + 1, 0, 16, 0, 16);
+        }
+
+        for(int dz = -1; dz <= 1; dz++) {
+            for(int dx = -1; dx <= 1; dx++) {
+                if(dx == 0 && dz == 0) continue;
+                LevelChunk chunk = level.getChunkSource().getChunkNow(chunkX + dx, chunkZ + dz);
+                if(chunk == null) continue;
+
+                // Local bounds of the border columns within that neighbour
+                int x0 = dx < 0 ? 16 - BORDER : 0, x1 = dx > 0 ? BORDER : 16;
+                int z0 = dz < 0 ? 16 - BORDER : 0, z1 = dz > 0 ? BORDER : 16;
+
+                // Walk the border columns down like the slope collector does, that's as deep as anyone looks
+                int top = minBuildHeight, bottom = minBuildHeight + height;
+                for(int z = z0; z < z1; z++) {
+                    for(int x = x0; x < x1; x++) {
+                        top = Math.max(top, chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x, z));
+                        cursor.set(chunk.getPos().getMinBlockX() + x, chunk.getHeight(Heightmap.Types.MOTION_BLOCKING, x, z), chunk.getPos().getMinBlockZ() + z);
+                        while(cursor.getY() > minBuildHeight && !isFloor(chunk, cursor)) {
+                            cursor.move(Direction.DOWN);
+                        }
+                        bottom = Math.min(bottom, cursor.getY());
+                    }
+                }
+
+                int fromSection = Math.max((bottom >> 4) - minSection, 0);
+                int toSection = (top >> 4) - minSection;
+                // Tints blend at most 7 blocks (plus the biome zoom's fuzz) away, which never goes past the neighbours
+                captureChunk(chunk, (dz + 1) * 3 + (dx + 1), fromSection, toSection, topSection + 1, x0, x1, z0, z1);
+            }
+        }
+    }
+
+    // Same test that ends TerrainSlopeCollector.getHeight()'s walk
+    private static boolean isFloor(LevelChunk chunk, BlockPos pos) {
+        BlockComposition composition = Transparency.getBlockComposition(chunk.getBlockState(pos), chunk, pos);
+        return !TransparencyState.isAtLeastAsTransparentAs(composition.getTransparencyState(), TransparencyState.SEMI_TRANSPARENT)
+            && composition.getBlockCompositionState() != CompositionState.NON_FULL_BLOCK;
+    }
+
+    /** Copies block sections from..to and biome sections 0..toBiomes (inclusive), and the heightmaps for the given columns. */
+    private void captureChunk(LevelChunk chunk, int index, int from, int to, int toBiomes, int x0, int x1, int z0, int z1) {
+        LevelChunkSection[] sections = chunk.getSections();
+        PalettedContainer<BlockState>[] sectionBlocks = blocks[index] = new PalettedContainer[sections.length];
+        PalettedContainer<Holder<Biome>>[] sectionBiomes = biomes[index] = new PalettedContainer[sections.length];
+        for(int s = 0; s < sections.length; s++) {
+            LevelChunkSection section = sections[s];
+            if(section == null) continue;
+            if(s <= toBiomes) {
+                sectionBiomes[s] = section.getBiomes().copy();
+            }
+            if(s >= from && s <= to && !section.hasOnlyAir()) {
+                sectionBlocks[s] = section.getStates().copy();
+            }
+        }
+        firstSection[index] = from;
+
+        int[][] maps = heightmaps[index] = new int[HEIGHTMAPS.length][256];
+        for(int t = 0; t < HEIGHTMAPS.length; t++) {
+            for(int z = z0; z < z1; z++) {
+                for(int x = x0; x < x1; x++) {
+                    // Same as Level.getHeight()
+                    maps[t][z * 16 + x] = chunk.getHeight(HEIGHTMAPS[t], x, z) + 1;
+                }
+            }
+        }
+    }
+
+    private DataLayer[] captureLight(Level level, LightLayer layer, ChunkPos pos, int sections) {
+        DataLayer[] light = new DataLayer[sections];
+        for(int s = 0; s < sections; s++) {
+            DataLayer data = level.getLightEngine().getLayerListener(layer).getDataLayerData(SectionPos.of(pos, minLightSection + s));
+            if(data != null && !data.isEmpty()) {
+                light[s] = data.copy();
+            }
+        }
+        return light;
+    }
+
+    private int chunkIndex(int cx, int cz) {
+        int dx = cx - chunkX, dz = cz - chunkZ;
+        if(dx < -1 || dx > 1 || dz < -1 || dz > 1) return -1;
+        return (dz + 1) * 3 + (dx + 1);
+    }
+
+    // Index of the chunk holding this column, -1 if it's further than BORDER from the chunk itself
+    private int borderIndex(int x, int z) {
+        if(x < minX - BORDER || x >= minX + 16 + BORDER || z < minZ - BORDER || z >= minZ + 16 + BORDER) return -1;
+        return chunkIndex(x >> 4, z >> 4);
+    }
+
+    public int getSeaLevel() {
+        return seaLevel;
+    }
+
+    /** Same as Level.getHeight(Heightmap.Types, int, int) */
+    public int getHeight(Heightmap.Types type, int x, int z) {
+        int index = borderIndex(x, z);
+        if(index < 0 || heightmaps[index] == null) return minBuildHeight;
+        for(int t = 0; t < HEIGHTMAPS.length; t++) {
+            if(HEIGHTMAPS[t] == type) {
+                return heightmaps[index][t][(z & 15) * 16 + (x & 15)];
+            }
+        }
+        throw new IllegalArgumentException("Heightmap not present in snapshot: " + type);
+    }
+
+    public BlockState getBlockState(int x, int y, int z) {
+        if(y < minBuildHeight || y >= minBuildHeight + height) return VOID_AIR;
+        int index = borderIndex(x, z);
+        if(index < 0 || blocks[index] == null) return VOID_AIR;
+        int s = (y >> 4) - minSection;
+        if(s < firstSection[index]) return VOID_AIR;
+        PalettedContainer<BlockState> section = blocks[index][s];
+        if(section == null) return AIR;
+        return section.get(x & 15, y & 15, z & 15);
+    }
+
+    @Override
+    public BlockState getBlockState(BlockPos pos) {
+        return getBlockState(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    @Override
+    public FluidState getFluidState(BlockPos pos) {
+        return getBlockState(pos).getFluidState();
+    }
+
+    @Override
+    public BlockEntity getBlockEntity(BlockPos pos) {
+        return null;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinBuildHeight() {
+        return minBuildHeight;
+    }
+
+    // Mirrors ChunkAccess.getNoiseBiome(). Where the level would generate the biome, use the closest one we have.
+    @Override
+    public Holder<Biome> getNoiseBiome(int qx, int qy, int qz) {
+        int index = chunkIndex(QuartPos.toSection(qx), QuartPos.toSection(qz));
+        if(index < 0 || biomes[index] == null) {
+            index = chunkIndex(chunkX, chunkZ);
+            if(biomes[index] == null) return fallbackBiome;
+            qx = Mth.clamp(qx, QuartPos.fromSection(chunkX), QuartPos.fromSection(chunkX) + 3);
+            qz = Mth.clamp(qz, QuartPos.fromSection(chunkZ), QuartPos.fromSection(chunkZ) + 3);
+        }
+
+        int minQuart = QuartPos.fromBlock(minBuildHeight);
+        int maxQuart = minQuart + QuartPos.fromBlock(height) - 1;
+        int quart = Mth.clamp(qy, minQuart, maxQuart);
+        PalettedContainer<Holder<Biome>> section = biomes[index][(QuartPos.toBlock(quart) >> 4) - minSection];
+        if(section == null) return fallbackBiome;
+        return section.get(qx & 3, quart & 3, qz & 3);
+    }
+
+    // Cached per column like ClientLevel.getBlockTint() does, the blend itself only runs once per column and resolver
+    @Override
+    public int getBlockTint(BlockPos pos, ColorResolver resolver) {
+        int x = pos.getX() - (chunkX - 1) * 16, z = pos.getZ() - (chunkZ - 1) * 16;
+        if(x < 0 || x >= 48 || z < 0 || z >= 48) return calculateBlockTint(pos, resolver);
+
+        int[] cache = tints.computeIfAbsent(resolver, $ -> {
+            int[] columns = new int[48 * 48];
+            Arrays.fill(columns, -1);
+            return columns;
+        });
+        int index = z * 48 + x;
+        int tint = cache[index];
+        if(tint == -1) {
+            tint = cache[index] = calculateBlockTint(pos, resolver);
+        }
+        return tint;
+    }
+
+    // Mirrors ClientLevel.calculateBlockTint()
+    private int calculateBlockTint(BlockPos pos, ColorResolver resolver) {
+        if(blendRadius == 0) {
+            return resolver.getColor(biomeManager.getBiome(pos).value(), pos.getX(), pos.getZ());
+        }
+
+        int samples = (blendRadius * 2 + 1) * (blendRadius * 2 + 1);
+        int r = 0, g = 0, b = 0;
+        for(int dz = -blendRadius; dz <= blendRadius; dz++) {
+            for(int dx = -blendRadius; dx <= blendRadius; dx++) {
+                int x = pos.getX() + dx, z = pos.getZ() + dz;
+                int color = resolver.getColor(biomeManager.getBiome(cursor.set(x, pos.getY(), z)).value(), x, z);
+                r += (color & 0xFF0000) >> 16;
+                g += (color & 0x00FF00) >> 8;
+                b += color & 0x0000FF;
+            }
+        }
+        return (r / samples & 0xFF) << 16 | (g / samples & 0xFF) << 8 | b / samples & 0xFF;
+    }
+
+    @Override
+    public float getShade(Direction direction, boolean shade) {
+        return shades[direction.ordinal() * 2 + (shade ? 1 : 0)];
+    }
+
+    @Override
+    public int getBrightness(LightLayer layer, BlockPos pos) {
+        boolean sky = layer == LightLayer.SKY;
+        if((pos.getX() >> 4) != chunkX || (pos.getZ() >> 4) != chunkZ) return sky && hasSkyLight ? 15 : 0;
+
+        int section = (pos.getY() >> 4) - minLightSection;
+        DataLayer[] light = sky ? skyLight : blockLight;
+        if(section < 0 || section >= light.length || light[section] == null) return sky && hasSkyLight ? 15 : 0;
+        return light[section].get(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
+    }
+
+    // Same as LevelLightEngine.getRawBrightness()
+    @Override
+    public int getRawBrightness(BlockPos pos, int skyDarken) {
+        int sky = getBrightness(LightLayer.SKY, pos) - skyDarken;
+        return Math.max(getBrightness(LightLayer.BLOCK, pos), sky);
+    }
+
+    @Override
+    public boolean canSeeSky(BlockPos pos) {
+        return getBrightness(LightLayer.SKY, pos) >= 15;
+    }
+
+    /** Has no light engines at all and reads 0 everywhere, the captured light is only available through the above. */
+    @Override
+    public LevelLightEngine getLightEngine() {
+        if(lightEngine == null) {
+            LevelSnapshot snapshot = this;
+            lightEngine = new LevelLightEngine(new LightChunkGetter() {
+                @Override
+                public BlockGetter getChunkForLighting(int x, int z) {
+                    return null;
+                }
+
+                @Override
+                public BlockGetter getLevel() {
+                    return snapshot;
+                }
+            }, false, false);
+        }
+        return lightEngine;
+    }
+}
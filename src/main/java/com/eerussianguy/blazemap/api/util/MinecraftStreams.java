@@ -42,6 +42,20 @@ public class MinecraftStreams {
             writeInt(pos.x);
             writeInt(pos.z);
         }
+
+        /** 7 bits per byte, small positive numbers take a single byte. */
+        public void writeVarInt(int value) throws IOException {
+            while((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        /** Zig-zag encoded so small negative numbers are small too. */
+        public void writeSignedVarInt(int value) throws IOException {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
     }
 
     public static class Input extends DataInputStream {
@@ -78,6 +92,21 @@ public class MinecraftStreams {
             int z = readInt();
             return new RegionPos(x, z);
         }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            for(int shift = 0; shift < 35; shift += 7) {
+                int b = readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+            throw new IOException("VarInt is too long");
+        }
+
+        public int readSignedVarInt() throws IOException {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
     }
 
     @FunctionalInterface
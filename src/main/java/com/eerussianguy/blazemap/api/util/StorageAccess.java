@@ -25,6 +25,10 @@ public interface StorageAccess {
     void move(ResourceLocation source, ResourceLocation destination) throws IOException;
     void move(ResourceLocation node, String source, String destination) throws IOException;
 
+    /** Does nothing if there is nothing to delete. */
+    void delete(ResourceLocation node) throws IOException;
+    void delete(ResourceLocation node, String child) throws IOException;
+
     /** Per-level storage. */
     interface LevelStorage extends StorageAccess { }
 
@@ -13,6 +13,7 @@ import com.eerussianguy.blazemap.api.BlazeRegistry.Key;
 import com.eerussianguy.blazemap.api.maps.Layer;
 import com.eerussianguy.blazemap.api.maps.MapType;
 import com.eerussianguy.blazemap.api.maps.Overlay;
+import com.eerussianguy.blazemap.engine.client.TileCodec;
 import com.eerussianguy.blazemap.feature.maps.MinimapRenderer;
 import com.eerussianguy.blazemap.feature.maps.WorldMapGui;
 import com.eerussianguy.blazemap.config.adapter.ConfigAdapter;
@@ -27,6 +28,7 @@ import com.eerussianguy.blazemap.config.adapter.MapTypeAdapter;
 public class ClientConfig {
     public final BooleanValue enableDebug;
     public final IntValue atlasMaxSize;
+    public final EnumValue<TileCodec.Type> tileCodec;
     public final FeaturesConfig clientFeatures;
     public final MapConfig worldMap;
     public final MinimapConfig minimap;
@@ -37,6 +39,7 @@ public class ClientConfig {
         innerBuilder.push("general");
         enableDebug = builder.apply("enableDebug").comment("Enable debug mode?").define("enableDebug", !FMLEnvironment.production);
         atlasMaxSize = builder.apply("atlasMaxSize").comment("Max memory allocation for atlas export, in Megabytes").defineInRange("atlasMaxSize", 1024, 256, 16384);
+        tileCodec = builder.apply("tileCodec").comment("Format map tiles are stored in, both are lossless. Tiles in other formats, including the old PNGs, are converted as they get saved").defineEnum("tileCodec", TileCodec.Type.QOI);
         innerBuilder.pop();
 
         innerBuilder.comment("Enable or disable (un)desired features");
@@ -8,6 +8,8 @@ import com.eerussianguy.blazemap.BlazeMap;
 
 public class CommonConfig {
     public final BooleanValue enableServerEngine;
+    public final IntValue collectionBudget;
+    public final IntValue mdCacheBudget;
 
     CommonConfig(Builder innerBuilder) {
         Function<String, Builder> builder = name -> innerBuilder.translation(BlazeMap.MOD_ID + ".config.common." + name);
@@ -16,6 +18,12 @@ public class CommonConfig {
         enableServerEngine = builder.apply("enableServerEngine")
             .comment("Enable the Server side Blaze Map Engine (integrated and dedicated)")
             .define("enableServerEngine", true);
+        collectionBudget = builder.apply("collectionBudget")
+            .comment("How many milliseconds per tick each engine may spend collecting dirty chunks in the game thread, shared by all dimensions")
+            .defineInRange("collectionBudget", 5, 1, 50);
+        mdCacheBudget = builder.apply("mdCacheBudget")
+            .comment("Roughly how many megabytes of heap each dimension may use to keep MasterData in memory. Takes effect on the next dimension load")
+            .defineInRange("mdCacheBudget", 256, 16, 8192);
         innerBuilder.pop();
     }
 }
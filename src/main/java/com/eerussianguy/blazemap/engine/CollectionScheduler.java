@@ -0,0 +1,144 @@
+package com.eerussianguy.blazemap.engine;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import net.minecraft.world.level.ChunkPos;
+
+import com.eerussianguy.blazemap.BlazeMap;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+
+/**
+ * Spreads game thread chunk collection across ticks.
+ * Dirty chunks get queued here when the debouncer releases them, instead of each one being sent to the game thread on
+ * its own. Every tick the queued chunks closest to a player are collected until the tick's time budget runs out, and
+ * whatever is left over waits for the next tick. At least one chunk is collected per tick, so the queue always drains.
+ * Chunks are kept as packed longs (ChunkPos.toLong()) while queued.
+ *
+ * The backlog is never sorted as a whole: each chunk's distance is worked out once per tick, the batch is turned into
+ * a min heap on it in linear time, and chunks are only popped off as long as the budget allows.
+ */
+class CollectionScheduler {
+    private final LongLinkedOpenHashSet queue = new LongLinkedOpenHashSet();
+    private long[] batch = new long[64];
+    private long[] keys = new long[64];
+    private final Consumer<ChunkPos> collector;
+    private int lastDeferred;
+    private long totalDeferred;
+
+    CollectionScheduler(Consumer<ChunkPos> collector) {
+        this.collector = collector;
+    }
+
+    /** Thread safe. */
+    void enqueue(long pos) {
+        synchronized(queue) {
+            queue.add(pos);
+        }
+    }
+
+    void clear() {
+        synchronized(queue) {
+            queue.clear();
+        }
+    }
+
+    int size() {
+        synchronized(queue) {
+            return queue.size();
+        }
+    }
+
+    /** How many chunks had to wait for a later tick at the end of the last tick. */
+    int lastDeferred() {
+        return lastDeferred;
+    }
+
+    /** How many times in total a chunk had to wait for a later tick. */
+    long totalDeferred() {
+        return totalDeferred;
+    }
+
+    /**
+     * Must be called in the game thread. The deadline is in System.nanoTime() terms, and is taken before calling this
+     * so the heap building is part of the budget too.
+     */
+    void tick(long deadline, List<ChunkPos> focus) {
+        int size;
+        synchronized(queue) {
+            if(queue.isEmpty()) return;
+            size = queue.size();
+            if(batch.length < size) {
+                batch = new long[Math.max(size, batch.length * 2)];
+                keys = new long[batch.length];
+            }
+            queue.toArray(batch);
+            queue.clear();
+        }
+
+        // Without anyone to be close to, every chunk is as good as any other and the heap stays as it is
+        for(int i = 0; i < size; i++) {
+            keys[i] = focus.isEmpty() ? 0 : distance(batch[i], focus);
+        }
+        for(int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+
+        // Closest first: pop the root to the end of the heap, so [heap, size) are done and [0, heap) are left over
+        int heap = size;
+        while(heap > 0) {
+            if(heap < size && System.nanoTime() >= deadline) break;
+            ChunkPos pos = new ChunkPos(batch[0]);
+            heap--;
+            swap(0, heap);
+            siftDown(0, heap);
+            try {
+                collector.accept(pos);
+            }
+            catch(Exception e) {
+                BlazeMap.LOGGER.error("Exception while collecting chunk {}. Skipping", pos, e);
+            }
+        }
+
+        int deferred = heap;
+        if(deferred > 0) {
+            synchronized(queue) {
+                for(int i = 0; i < heap; i++) {
+                    queue.add(batch[i]);
+                }
+            }
+        }
+        lastDeferred = deferred;
+        totalDeferred += deferred;
+    }
+
+    private void siftDown(int i, int heap) {
+        while(true) {
+            int child = i * 2 + 1;
+            if(child >= heap) return;
+            if(child + 1 < heap && keys[child + 1] < keys[child]) child++;
+            if(keys[i] <= keys[child]) return;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long pos = batch[a];
+        batch[a] = batch[b];
+        batch[b] = pos;
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+    }
+
+    private static long distance(long pos, List<ChunkPos> focus) {
+        long best = Long.MAX_VALUE;
+        int x = ChunkPos.getX(pos), z = ChunkPos.getZ(pos);
+        for(ChunkPos center : focus) {
+            long dx = x - center.x, dz = z - center.z;
+            best = Math.min(best, dx * dx + dz * dz);
+        }
+        return best;
+    }
+}
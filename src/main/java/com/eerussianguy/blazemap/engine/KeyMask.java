@@ -0,0 +1,57 @@
+package com.eerussianguy.blazemap.engine;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.eerussianguy.blazemap.api.BlazeRegistry;
+import com.eerussianguy.blazemap.api.BlazeRegistry.Key;
+
+/**
+ * Sets of registry keys packed into a long, one bit per key ordinal, so that diffs cost nothing to build and checking
+ * whether a component cares about a diff is a single AND.
+ * That caps the registries masks are made of (the MasterData one) at 64 keys, which is checked when they freeze, so
+ * going past it stops the game right there instead of quietly handing out wrong masks.
+ */
+public class KeyMask {
+    public static final long NONE = 0L;
+    public static final long ALL = -1L;
+
+    public static long bit(Key<?> key) {
+        int ordinal = key.ordinal();
+        if(ordinal < 0) return NONE;
+        if(ordinal >= Long.SIZE) throw new IllegalArgumentException("Key " + key + " has no bit, only the first " + Long.SIZE + " keys of a registry fit in a KeyMask");
+        return 1L << ordinal;
+    }
+
+    /** Must be called once the registry is frozen, before any of its keys go into a mask. */
+    public static void checkCapacity(BlazeRegistry<?> registry, String name) {
+        int size = registry.keys().size();
+        if(size > Long.SIZE) {
+            throw new IllegalStateException(String.format("%d %s registered, no more than %d are supported. First one over the limit: %s", size, name, Long.SIZE, registry.keys().get(Long.SIZE)));
+        }
+    }
+
+    public static long of(Collection<? extends Key<?>> keys) {
+        long mask = NONE;
+        for(Key<?> key : keys) {
+            mask |= bit(key);
+        }
+        return mask;
+    }
+
+    public static boolean contains(long mask, Key<?> key) {
+        return (mask & bit(key)) != 0;
+    }
+
+    public static <T> Set<Key<T>> keys(long mask, BlazeRegistry<T> registry) {
+        Set<Key<T>> set = new HashSet<>();
+        if(mask == NONE) return set;
+        List<Key<T>> keys = registry.keys();
+        for(Key<T> key : keys) {
+            if(contains(mask, key)) set.add(key);
+        }
+        return set;
+    }
+}
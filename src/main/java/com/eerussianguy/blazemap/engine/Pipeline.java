@@ -4,22 +4,23 @@ import java.util.*;
 import java.util.function.Supplier;
 
 import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.entity.Entity;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
 
 import com.eerussianguy.blazemap.BlazeMap;
-import com.eerussianguy.blazemap.api.BlazeRegistry;
 import com.eerussianguy.blazemap.api.BlazeRegistry.Key;
 import com.eerussianguy.blazemap.api.pipeline.*;
 import com.eerussianguy.blazemap.api.util.RegionPos;
+import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCache;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCacheView;
 import com.eerussianguy.blazemap.engine.cache.LevelMDCache;
 import com.eerussianguy.blazemap.engine.storage.InternalStorage;
 import com.eerussianguy.blazemap.engine.storage.PublicStorage;
 import com.eerussianguy.blazemap.lib.async.AsyncChainRoot;
-import com.eerussianguy.blazemap.lib.async.DebouncingDomain;
 import com.eerussianguy.blazemap.lib.async.DebouncingThread;
+import com.eerussianguy.blazemap.lib.async.LongDebouncingDomain;
 
 import static com.eerussianguy.blazemap.engine.UnsafeGenerics.*;
 
@@ -31,20 +32,20 @@ public abstract class Pipeline {
     protected final ThreadLocal<ChunkMDCacheView> CACHE_VIEWS = ThreadLocal.withInitial(ChunkMDCacheView::new);
     protected final ThreadLocal<ChunkMDCacheView> DIFF_VIEWS = ThreadLocal.withInitial(ChunkMDCacheView::new);
     protected final ThreadLocal<ChunkMDCache> PLACEHOLDER_CACHES = ThreadLocal.withInitial(ChunkMDCache::new);
-    protected final ThreadLocal<ChunkMDCache> DIFFERENTIAL_CACHES = ThreadLocal.withInitial(ChunkMDCache::new);
+    protected final ThreadLocal<ColumnProfile> COLUMN_PROFILES = ThreadLocal.withInitial(ColumnProfile::new);
 
     private final PipelineProfiler profiler;
     protected final AsyncChainRoot async;
-    protected final DebouncingDomain<ChunkPos> dirtyChunks;
+    protected final LongDebouncingDomain dirtyChunks;
+    private final CollectionScheduler collectionQueue;
     public final ResourceKey<Level> dimension;
     protected final Supplier<Level> level;
     protected final Set<Key<Collector>> availableCollectors;
     protected final Set<Key<Transformer>> availableTransformers;
     protected final Set<Key<Processor>> availableProcessors;
     protected final boolean differentialExecution;
-    private final Collector<MasterDatum>[] collectors;
-    private final List<Transformer> transformers;
-    private final List<Processor> processors;
+    private final Collector<MasterDatum>[] collectors, snapshotCollectors;
+    private final PipelinePlan plan;
     public final int numCollectors, numProcessors, numTransformers;
     protected final InternalStorage storage;
     public final PublicStorage addonStorage;
@@ -60,7 +61,8 @@ public abstract class Pipeline {
         Set<Key<Processor>> availableProcessors
     ) {
         this.async = async;
-        this.dirtyChunks = new DebouncingDomain<>(debouncer, this::begin, 500, 5000, BlazeMap.LOGGER);
+        this.collectionQueue = new CollectionScheduler(this::begin);
+        this.dirtyChunks = new LongDebouncingDomain(debouncer, collectionQueue::enqueue, 500, 5000, BlazeMap.LOGGER);
         this.profiler = profiler;
 
         this.dimension = dimension;
@@ -70,9 +72,11 @@ public abstract class Pipeline {
         this.availableTransformers = stripTransformers(availableTransformers);
         this.availableProcessors = availableProcessors;
 
-        collectors = availableCollectors.stream().map(Key::value).toArray(Collector[]::new);
-        transformers = this.availableTransformers.stream().map(Key::value).toList();
-        processors = this.availableProcessors.stream().map(Key::value).toList();
+        collectors = availableCollectors.stream().map(Key::value).filter(c -> !c.isSnapshotSafe()).toArray(Collector[]::new);
+        snapshotCollectors = availableCollectors.stream().map(Key::value).filter(Collector::isSnapshotSafe).toArray(Collector[]::new);
+        List<Transformer> transformers = this.availableTransformers.stream().map(Key::value).toList();
+        List<Processor> processors = this.availableProcessors.stream().map(Key::value).toList();
+        this.plan = new PipelinePlan(transformers, processors);
 
         boolean differentialExecution = false;
         for(Processor processor : processors) {
@@ -80,7 +84,7 @@ public abstract class Pipeline {
         }
         this.differentialExecution = differentialExecution;
 
-        numCollectors = collectors.length;
+        numCollectors = collectors.length + snapshotCollectors.length;
         numTransformers = transformers.size();
         numProcessors = processors.size();
 
@@ -93,27 +97,71 @@ public abstract class Pipeline {
         return dirtyChunks.size();
     }
 
+    public int getQueuedChunks() {
+        return collectionQueue.size();
+    }
+
+    public int getDeferredChunks() {
+        return collectionQueue.lastDeferred();
+    }
+
+    public long getTotalDeferredChunks() {
+        return collectionQueue.totalDeferred();
+    }
+
 
     // =================================================================================================================
     // Pipeline IO
     public void onChunkChanged(ChunkPos pos) {
         if(!level.get().getChunkSource().hasChunk(pos.x, pos.z)) return;
-        dirtyChunks.push(pos);
+        dirtyChunks.push(pos.toLong());
+    }
+
+    /**
+     * Called every tick in the game thread. Collects queued dirty chunks, closest to players first, until the deadline.
+     * Engines running several pipelines share one deadline between them, see collectionDeadline().
+     */
+    public void tick(long deadline) {
+        collectionQueue.tick(deadline, getCollectionFocus());
+    }
+
+    /** When collection must stop for a tick starting now, going by the configured budget. In System.nanoTime() terms. */
+    public static long collectionDeadline() {
+        return System.nanoTime() + BlazeMapConfig.COMMON.collectionBudget.get() * 1_000_000L;
+    }
+
+    /** Chunks around which collection is prioritized. */
+    protected List<ChunkPos> getCollectionFocus() {
+        return level.get().players().stream().map(Entity::chunkPosition).toList();
+    }
+
+    protected void clearCollectionQueue() {
+        collectionQueue.clear();
     }
 
     public void insertMasterData(ChunkPos pos, List<MasterDatum> data) {
         async.runOnDataThread(() -> processMasterData(pos, data));
     }
 
-    protected abstract void onPipelineOutput(ChunkPos pos, Set<Key<DataType>> diff, ChunkMDCacheView view, ChunkMDCache cache);
+    /** diff is the KeyMask of the DataTypes that changed. */
+    protected abstract void onPipelineOutput(ChunkPos pos, long diff, ChunkMDCacheView view, ChunkMDCache cache);
 
 
     // =================================================================================================================
     // Pipeline internals
+    // Called by the collection scheduler, in the game thread
     protected void begin(ChunkPos pos) {
-        async.startOnGameThread($ -> this.runCollectors(pos))
-            .thenOnDataThread(data -> this.processMasterData(pos, data))
-            .execute();
+        CollectedChunk collected = this.runCollectors(pos, new ArrayList<>(32));
+        if(collected.data().isEmpty() && collected.snapshot() == null) return;
+        async.runOnDataThread(() -> this.processMasterData(pos, this.runSnapshotCollectors(pos, collected)));
+    }
+
+    /** What the game thread part of collection hands over to the data threads. */
+    public record CollectedChunk(List<MasterDatum> data, LevelSnapshot snapshot) {}
+
+    /** Blend radius used for biome tints in snapshots. Only the client cares about tints. */
+    protected int getBiomeBlendRadius() {
+        return 0;
     }
 
     // TODO: figure out why void gives generic errors but null Void is OK. Does it have to be an Object?
@@ -122,28 +170,28 @@ public abstract class Pipeline {
 
         ChunkMDCache cache = useMDCache ? mdCache.getChunkCache(pos) : PLACEHOLDER_CACHES.get().clear();
         ChunkMDCacheView view = CACHE_VIEWS.get().setSource(cache);
-        ChunkMDCacheView old = differentialExecution ? DIFF_VIEWS.get().setSource(cache.copyInto(DIFFERENTIAL_CACHES.get())) : null;
+        // Hang on to the version from before this pass, differential processors get to compare against it
+        ChunkMDCacheView old = differentialExecution ? DIFF_VIEWS.get().setSource(cache.snapshot()) : null;
 
         // Diff collected data
-        Set<Key<DataType>> diff = new HashSet<>();
-        diffMD(collectedData, cache, diff);
-
-        List<MasterDatum> transformedData = this.runTransformers(diff, view);
+        long diff = diffMD(collectedData, cache, KeyMask.NONE);
 
-        // Diff transformed data
-        diffMD(transformedData, cache, diff);
+        // Transformers write straight into the cache, so the ones further down a chain see fresh data
+        diff = this.runTransformers(diff, view, cache);
 
         this.onPipelineOutput(pos, diff, view, cache);
         this.runProcessors(pos, diff, view, old);
         return null;
     }
 
-    private static void diffMD(List<MasterDatum> data, ChunkMDCache cache, Set<Key<DataType>> diff) {
-        for(MasterDatum md : data) {
+    private static long diffMD(List<MasterDatum> data, ChunkMDCache cache, long diff) {
+        for(int i = 0; i < data.size(); i++) {
+            MasterDatum md = data.get(i);
             if(cache.update(md)) {
-                diff.add(stripKey(md.getID()));
+                diff |= KeyMask.bit(md.getID());
             }
         }
+        return diff;
     }
 
     protected void useMDCache() {
@@ -161,64 +209,111 @@ public abstract class Pipeline {
 
     // =================================================================================================================
     // Pipeline execution steps
-    protected List<MasterDatum> runCollectors(ChunkPos pos) {
+    // Runs in the game thread: collectors that need the live level, then snapshot the chunk for all the others
+    protected CollectedChunk runCollectors(ChunkPos pos, List<MasterDatum> data) {
+        ColumnProfile columns = COLUMN_PROFILES.get();
         try {
             profiler.collectorLoad.hit();
             profiler.collectorTime.begin();
             Level level = this.level.get();
-            if(!level.getChunkSource().hasChunk(pos.x, pos.z)) return Collections.EMPTY_LIST;
+            if(!level.getChunkSource().hasChunk(pos.x, pos.z)) return new CollectedChunk(data, null);
 
             int x0 = pos.getMinBlockX();
             int x1 = pos.getMaxBlockX();
             int z0 = pos.getMinBlockZ();
             int z1 = pos.getMaxBlockZ();
 
-            List<MasterDatum> data = new ArrayList<>(32);
+            // Shared column scan, done lazily by the first collector that needs it
+            columns.reset(level, x0, z0);
+
             for(Collector collector : collectors) {
-                MasterDatum md = collector.collect(level, x0, z0, x1, z1);
+                MasterDatum md = collector.collect(level, columns, x0, z0, x1, z1);
                 if(md != null) {
                     data.add(md);
                 }
             }
-            return data;
+
+            LevelSnapshot snapshot = snapshotCollectors.length > 0 ? LevelSnapshot.capture(level, pos, getBiomeBlendRadius()) : null;
+            return new CollectedChunk(data, snapshot);
         }
         finally {
+            columns.release();
             profiler.collectorTime.end();
         }
     }
 
-    protected List<MasterDatum> runTransformers(Set<Key<DataType>> diff, ChunkMDCacheView view) {
-        Transformer[] transformers = this.transformers.stream().filter(t -> !Collections.disjoint(t.getInputIDs(), diff)).toArray(Transformer[]::new);
-        if(transformers.length == 0) return Collections.EMPTY_LIST;
+    // Runs in the data threads
+    protected List<MasterDatum> runSnapshotCollectors(ChunkPos pos, CollectedChunk collected) {
+        List<MasterDatum> data = collected.data();
+        LevelSnapshot snapshot = collected.snapshot();
+        if(snapshot == null) return data;
+
+        ColumnProfile columns = COLUMN_PROFILES.get();
+        try {
+            profiler.snapshotCollectorLoad.hit();
+            profiler.snapshotCollectorTime.begin();
+
+            int x0 = pos.getMinBlockX();
+            int x1 = pos.getMaxBlockX();
+            int z0 = pos.getMinBlockZ();
+            int z1 = pos.getMaxBlockZ();
+
+            columns.reset(snapshot, x0, z0);
+            for(Collector collector : snapshotCollectors) {
+                MasterDatum md = collector.collect(snapshot, columns, x0, z0, x1, z1);
+                if(md != null) {
+                    data.add(md);
+                }
+            }
+            return data;
+        }
+        finally {
+            columns.release();
+            profiler.snapshotCollectorTime.end();
+        }
+    }
+
+    // Runs the transformers in dependency order, updating the cache and the diff as it goes. Returns the new diff.
+    protected long runTransformers(long diff, ChunkMDCacheView view, ChunkMDCache cache) {
+        PipelinePlan.Step<Transformer>[] steps = plan.transformers;
+        int first = PipelinePlan.firstAffected(steps, diff);
+        if(first < 0) return diff;
 
         try {
             profiler.transformerLoad.hit();
             profiler.transformerTime.begin();
-            List<MasterDatum> data = new ArrayList<>(32);
-            for(Transformer transformer : transformers) {
-                view.setFilter(transformer.getInputIDs());
-                data.add(transformer.transform(view));
+            for(int i = first; i < steps.length; i++) {
+                PipelinePlan.Step<Transformer> step = steps[i];
+                if(!step.isAffectedBy(diff)) continue;
+                view.setFilter(step.inputs());
+                MasterDatum md = step.component().transform(view);
+                if(md != null && cache.update(md)) {
+                    diff |= step.output();
+                }
             }
-            return data;
+            return diff;
         }
         finally {
             profiler.transformerTime.end();
         }
     }
 
-    protected void runProcessors(ChunkPos chunk, Set<Key<DataType>> diff, ChunkMDCacheView current, ChunkMDCacheView old) {
-        Processor[] processors = this.processors.stream().filter(p -> !Collections.disjoint(p.getInputIDs(), diff)).toArray(Processor[]::new);
-        if(processors.length == 0) return;
+    protected void runProcessors(ChunkPos chunk, long diff, ChunkMDCacheView current, ChunkMDCacheView old) {
+        PipelinePlan.Step<Processor>[] steps = plan.processors;
+        int first = PipelinePlan.firstAffected(steps, diff);
+        if(first < 0) return;
 
         try {
             profiler.processorLoad.hit();
             profiler.processorTime.begin();
             RegionPos region = new RegionPos(chunk);
-            for(Processor processor : processors) {
-                Set<BlazeRegistry.Key<DataType>> keys = stripKeys(processor.getInputIDs());
-                current.setFilter(keys);
+            for(int i = first; i < steps.length; i++) {
+                PipelinePlan.Step<Processor> step = steps[i];
+                if(!step.isAffectedBy(diff)) continue;
+                Processor processor = step.component();
+                current.setFilter(step.inputs());
                 if(differentialExecution && processor.executionMode == ExecutionMode.DIFFERENTIAL) {
-                    old.setFilter(keys);
+                    old.setFilter(step.inputs());
                     processor.execute(dimension, region, chunk, current, old);
                 } else {
                     processor.execute(dimension, region, chunk, current);
@@ -0,0 +1,86 @@
+package com.eerussianguy.blazemap.engine;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+import com.eerussianguy.blazemap.BlazeMap;
+import com.eerussianguy.blazemap.api.pipeline.Processor;
+import com.eerussianguy.blazemap.api.pipeline.Transformer;
+
+/**
+ * The order in which a pipeline runs its components, worked out once when the pipeline is built.
+ *
+ * Every step carries the KeyMask of the MasterData it reads, and producing steps the bit of the one they write, so for
+ * each chunk the pipeline only has to AND them against what changed. Transformers are sorted so that each one runs
+ * after every transformer it takes input from, which lets chains of transformers see fresh data on the same pass.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class PipelinePlan {
+    public record Step<T>(T component, long inputs, long output) {
+        public boolean isAffectedBy(long diff) {
+            return (inputs & diff) != 0;
+        }
+    }
+
+    public final Step<Transformer>[] transformers;
+    public final Step<Processor>[] processors;
+
+    /** Must be built after the registries are frozen, so the key ordinals are final. */
+    public PipelinePlan(Collection<Transformer> transformers, Collection<Processor> processors) {
+        this.transformers = sortTransformers(steps(transformers, t -> KeyMask.of(t.getInputIDs()), t -> KeyMask.bit(t.getOutputID())));
+        this.processors = steps(processors, p -> KeyMask.of(p.getInputIDs()), p -> KeyMask.NONE);
+    }
+
+    public static <T> Step<T>[] steps(Collection<T> components, ToLongFunction<T> inputs, ToLongFunction<T> output) {
+        return components.stream().map(c -> new Step<>(c, inputs.applyAsLong(c), output.applyAsLong(c))).toArray(Step[]::new);
+    }
+
+    /** Index of the first step that needs to run for this diff, or -1 if none do. */
+    public static int firstAffected(Step<?>[] steps, long diff) {
+        for(int i = 0; i < steps.length; i++) {
+            if(steps[i].isAffectedBy(diff)) return i;
+        }
+        return -1;
+    }
+
+    /** Topological sort (Kahn), keeping the original order between transformers that don't depend on each other. */
+    private static Step<Transformer>[] sortTransformers(Step<Transformer>[] steps) {
+        int count = steps.length;
+        int[] pending = new int[count]; // how many producers each step is still waiting for
+        for(int i = 0; i < count; i++) {
+            for(int j = 0; j < count; j++) {
+                if(i != j && (steps[i].output & steps[j].inputs) != 0) pending[j]++;
+            }
+        }
+
+        List<Step<Transformer>> sorted = new ArrayList<>(count);
+        boolean[] done = new boolean[count];
+        boolean progress = true;
+        while(progress) {
+            progress = false;
+            for(int i = 0; i < count; i++) {
+                if(done[i] || pending[i] > 0) continue;
+                done[i] = true;
+                progress = true;
+                sorted.add(steps[i]);
+                for(int j = 0; j < count; j++) {
+                    if(i != j && (steps[i].output & steps[j].inputs) != 0) pending[j]--;
+                }
+                break; // start over, so the earliest ready step always goes next
+            }
+        }
+
+        if(sorted.size() < count) {
+            List<String> cycle = new ArrayList<>();
+            for(int i = 0; i < count; i++) {
+                if(!done[i]) {
+                    sorted.add(steps[i]);
+                    cycle.add(steps[i].component.getID().toString());
+                }
+            }
+            BlazeMap.LOGGER.warn("Transformers {} depend on each other in a cycle, they'll run in registration order", cycle);
+        }
+
+        return sorted.toArray(Step[]::new);
+    }
+}
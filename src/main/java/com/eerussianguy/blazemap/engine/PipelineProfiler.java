@@ -5,6 +5,8 @@ import com.eerussianguy.blazemap.profiling.Profiler;
 public class PipelineProfiler {
     public final Profiler.TimeProfilerSync collectorTime;
     public final Profiler.LoadProfiler collectorLoad;
+    public final Profiler.TimeProfilerAsync snapshotCollectorTime;
+    public final Profiler.LoadProfiler snapshotCollectorLoad;
     public final Profiler.TimeProfilerAsync transformerTime;
     public final Profiler.LoadProfiler transformerLoad;
     public final Profiler.TimeProfilerAsync processorTime;
@@ -13,6 +15,8 @@ public class PipelineProfiler {
     public PipelineProfiler(
         Profiler.TimeProfilerSync collectorTime,
         Profiler.LoadProfiler collectorLoad,
+        Profiler.TimeProfilerAsync snapshotCollectorTime,
+        Profiler.LoadProfiler snapshotCollectorLoad,
         Profiler.TimeProfilerAsync transformerTime,
         Profiler.LoadProfiler transformerLoad,
         Profiler.TimeProfilerAsync processorTime,
@@ -20,6 +24,8 @@ public class PipelineProfiler {
     ) {
         this.collectorTime = collectorTime;
         this.collectorLoad = collectorLoad;
+        this.snapshotCollectorTime = snapshotCollectorTime;
+        this.snapshotCollectorLoad = snapshotCollectorLoad;
         this.transformerTime = transformerTime;
         this.transformerLoad = transformerLoad;
         this.processorTime = processorTime;
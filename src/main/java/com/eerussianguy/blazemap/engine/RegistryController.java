@@ -18,6 +18,7 @@ public class RegistryController {
             IEventBus bus = MinecraftForge.EVENT_BUS;
             bus.post(new BlazeRegistryEvent.MasterDataRegistryEvent());
             BlazeMapAPI.MASTER_DATA.freeze();
+            KeyMask.checkCapacity(BlazeMapAPI.MASTER_DATA, "MasterData types");
 
             bus.post(new BlazeRegistryEvent.CollectorRegistryEvent());
             BlazeMapAPI.COLLECTORS.freeze();
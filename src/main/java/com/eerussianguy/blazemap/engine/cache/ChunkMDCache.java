@@ -1,98 +1,92 @@
 package com.eerussianguy.blazemap.engine.cache;
 
-import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-
-import com.eerussianguy.blazemap.BlazeMap;
 import com.eerussianguy.blazemap.api.BlazeMapAPI;
 import com.eerussianguy.blazemap.api.BlazeRegistry;
 import com.eerussianguy.blazemap.api.pipeline.DataType;
 import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
-import com.eerussianguy.blazemap.api.util.MinecraftStreams;
+import com.eerussianguy.blazemap.engine.KeyMask;
 import com.eerussianguy.blazemap.engine.UnsafeGenerics;
 
+/**
+ * Holds the MasterData of one chunk as a chain of immutable, numbered Snapshots.
+ *
+ * A Snapshot is never modified after it has been published: every update builds the next one and swaps it in
+ * atomically, so readers never lock and never see a half-done update. Consecutive snapshots share every datum that
+ * didn't change, so holding on to an older one (say, to diff against) costs a reference and nothing more.
+ */
 public class ChunkMDCache {
-    protected final Map<BlazeRegistry.Key<DataType>, MasterDatum> data = new TreeMap<>(Comparator.comparing(o -> o.location));
-    protected volatile boolean dirty = false;
+    private static final int DATUM_BYTES = 16 * (16 + 16 * 4) + (16 + 16 * 4) + 32; // a 16x16 grid of ints or floats
 
-    protected final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
-    protected final ReentrantReadWriteLock.ReadLock rLock = cacheLock.readLock();
-    protected final ReentrantReadWriteLock.WriteLock wLock = cacheLock.writeLock();
+    private static final AtomicReferenceFieldUpdater<ChunkMDCache, Snapshot> CURRENT =
+        AtomicReferenceFieldUpdater.newUpdater(ChunkMDCache.class, Snapshot.class, "current");
 
+    protected volatile Snapshot current = Snapshot.EMPTY;
+    protected volatile boolean dirty = false;
 
-    public MasterDatum get(BlazeRegistry.Key<DataType> key) {
-        rLock.lock();
-        try {
-            return data.get(key);
 
-        } finally {
-            rLock.unlock();
-        }
+    public MasterDatum get(BlazeRegistry.Key<DataType> key) {
+        return current.get(key);
     }
 
     public boolean update(MasterDatum datum) {
         BlazeRegistry.Key<DataType> key = UnsafeGenerics.stripKey(datum.getID());
+        int index = ordinal(key);
 
-        wLock.lock();
-        try {
-            MasterDatum old = data.get(key);
+        while(true) {
+            Snapshot old = this.current;
+            if(index < old.data.length && datum.equals(old.data[index])) return false;
 
-            if(!datum.equals(old)) {
+            if(CURRENT.compareAndSet(this, old, old.with(index, datum))) {
                 setDirty(true);
-                data.put(key, datum);
-
                 return true;
             }
-            return false;
-
-        } finally {
-            wLock.unlock();
         }
     }
 
+    /** The current version of the data. It will never change, no matter what happens to the cache afterwards. */
+    public Snapshot snapshot() {
+        return current;
+    }
+
     public boolean isEmpty() {
-        rLock.lock();
-        try {
-            return data.isEmpty();
+        return current.isEmpty();
+    }
 
-        } finally {
-            rLock.unlock();
+    /** KeyMask of the DataTypes present in this cache. */
+    public long keyMask() {
+        long keys = KeyMask.NONE;
+        for(MasterDatum datum : current.data) {
+            if(datum != null) keys |= KeyMask.bit(datum.getID());
         }
+        return keys;
     }
 
-    public Set<BlazeRegistry.Key<DataType>> keys() {
-        rLock.lock();
-        try {
-            return data.keySet();
-
-        } finally {
-            rLock.unlock();
+    /** Rough heap footprint, assuming every datum is about as big as a 16x16 grid, which most of them are. */
+    public int estimateBytes() {
+        MasterDatum[] data = current.data;
+        int bytes = 64 + 16 + data.length * 4;
+        for(MasterDatum datum : data) {
+            if(datum != null) bytes += DATUM_BYTES;
         }
+        return bytes;
     }
 
     public List<MasterDatum> data() {
-        rLock.lock();
-        try {
-            return data.values().stream().toList();
-
-        } finally {
-            rLock.unlock();
+        MasterDatum[] data = current.data;
+        List<MasterDatum> list = new ArrayList<>(data.length);
+        for(MasterDatum datum : data) {
+            if(datum != null) list.add(datum);
         }
+        return list;
     }
 
     public ChunkMDCache clear() {
-        wLock.lock();
-        try {
-            setDirty(true);
-            data.clear();
-
-            return this;
-
-        } finally {
-            wLock.unlock();
-        }
+        this.current = current.cleared();
+        setDirty(true);
+        return this;
     }
 
     public ChunkMDCache copy() {
@@ -100,120 +94,116 @@ public class ChunkMDCache {
     }
 
     public ChunkMDCache copyInto(ChunkMDCache clone) {
-        rLock.lock();
-        clone.wLock.lock();
-
-        try {
-            clone.setDirty(true);
-
-            clone.data.clear();
-            clone.data.putAll(data);
-            return clone;
-
-        } finally {
-            clone.wLock.unlock();
-            rLock.unlock();
-        }
+        clone.current = this.current;
+        clone.setDirty(true);
+        return clone;
     }
 
     /**
      * Mark this chunk as either "dirty" or "not dirty" (ie "clean").
      *
-     * A chunk can only be marked dirty if already holding the write lock, however can be marked as
-     * clean from either the read or write lock (eg if cache has been read out to file to save).
-     *
-     * Note: As isDirty() is _not_ protected by the cache lock (though this.dirty is marked volatile to
-     * synchronise its value between threads), placement of calls to setDirty() need to be considered in the
-     * context of providing the most useful value to other threads checking this chunks current cleanliness status
-     * (knowing they won't then be able to act further on this chunk without first acquiring its lock)
+     * Updates swap the data in before marking the chunk dirty, and writers only mark it clean if the data they wrote
+     * is still the current one, so a concurrent update can never be left marked as clean.
      */
     protected void setDirty(boolean dirty) {
-        rLock.lock();
-        try {
-            if (dirty && !cacheLock.isWriteLockedByCurrentThread()) {
-                throw new IllegalThreadStateException(
-                    "Trying to mark ChunkMDCache as dirty without holding write lock first. You must hold the write lock before changing the ChunkMDCache."
-                );
-            }
-
-            this.dirty = dirty;
-
-        } finally {
-            rLock.unlock();
-        }
+        this.dirty = dirty;
     }
 
     /**
      * Returns if this cache is dirty or not.
-     *
-     * Note that this function is _not_ protected by the chunk lock to improve throughput when checking region cleanliness,
-     * though the underlying value itself is volatile to keep it synchronised across threads
+     * The underlying value is volatile to keep it synchronised across threads.
      */
     public boolean isDirty() {
         return dirty;
     }
 
+    private static int ordinal(BlazeRegistry.Key<DataType> key) {
+        int index = key.ordinal();
+        if(index < 0) throw new IllegalArgumentException("Unregistered MD DataType: " + key);
+        return index;
+    }
+
     static class Persisted extends ChunkMDCache {
         private final RegionMDCache parent;
+        private final int index;
 
-        public Persisted(RegionMDCache parent) {
+        public Persisted(RegionMDCache parent, int index) {
             this.parent = parent;
+            this.index = index;
         }
 
         /**
-         * Read from stream into cache
+         * Fill the cache with what was read from disk. A chunk being loaded is clean already, and must leave the dirty
+         * bitmap alone: it may be a losing copy of a chunk that's already published, and that bit belongs to the winner.
          */
-        public void read(MinecraftStreams.Input stream) throws IOException {
-            int entries = stream.readInt();
+        void load(MasterDatum[] data) {
+            this.current = Snapshot.of(data);
+        }
+
+        /**
+         * Only set "clean" after everything's been written in case exceptions are thrown while doing so.
+         * If someone swapped in new data meanwhile it's theirs to mark dirty again, as it isn't on disk.
+         */
+        void markWritten(Snapshot written) {
+            setDirty(false);
+            if(this.current != written) setDirty(true);
+        }
+
+        /** The dirty state lives in the parent's bitmap, so the parent can tell if it needs saving without asking us. */
+        @Override
+        protected void setDirty(boolean dirty) {
+            if(dirty) {
+                parent.markDirty(index);
+            }
+            else {
+                parent.markClean(index);
+            }
+        }
 
-            // Yes I see the irony that the read() function needs a write lock and the write() function needs a read lock
-            wLock.lock();
-            try {
-                for(int i = 0; i < entries; i++) { // Why can't I just write Key<DataType<>> and have the compiler trust me? ffs.
-                    BlazeRegistry.Key<DataType> key = (BlazeRegistry.Key<DataType>) (Object) BlazeMapAPI.MASTER_DATA.findOrCreate(stream.readResourceLocation());
+        @Override
+        public boolean isDirty() {
+            return parent.isDirty(index);
+        }
+    }
 
-                    if (key.value() == null) {
-                        BlazeMap.LOGGER.warn("Unrecognised DataType in MD cache. Did you uninstall a Blaze Map extension? Skipping cache read");
-                        throw new IOException("Cannot deserialize unregistered MD DataType");
-                    }
 
-                    data.put(key, key.value().deserialize(stream));
-                }
+    // =================================================================================================================
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new MasterDatum[0], 0);
 
-                // Setting "clean" now the cache matches what's on disk
-                setDirty(false);
+        final MasterDatum[] data;
+        public final long version;
 
-            } finally {
-                wLock.unlock();
-            }
+        private Snapshot(MasterDatum[] data, long version) {
+            this.data = data;
+            this.version = version;
         }
-        /**
-         * Write from cache into stream
-         */
-        public void write(MinecraftStreams.Output stream) throws IOException {
-            rLock.lock();
-            try {
-                stream.writeInt(data.size());
-
-                for(Map.Entry<BlazeRegistry.Key<DataType>, MasterDatum> entry : data.entrySet()) {
-                    BlazeRegistry.Key<DataType> key = entry.getKey();
 
-                    stream.writeResourceLocation(key.location);
-                    key.value().serialize(stream, entry.getValue());
-                }
+        static Snapshot of(MasterDatum[] data) {
+            return new Snapshot(data, 0);
+        }
 
-                // Only set "clean" after everything's been read in case exceptions are thrown while doing so
-                setDirty(false);
+        public MasterDatum get(BlazeRegistry.Key<DataType> key) {
+            int index = key.ordinal();
+            return index >= 0 && index < data.length ? data[index] : null;
+        }
 
-            } finally {
-                rLock.unlock();
+        public boolean isEmpty() {
+            for(MasterDatum datum : data) {
+                if(datum != null) return false;
             }
+            return true;
         }
 
-        @Override
-        protected void setDirty(boolean dirty) {
-            super.setDirty(dirty);
-            parent.requestSave();
+        /** Next version, with one datum replaced. Only the array of references is copied, the data itself is shared. */
+        Snapshot with(int index, MasterDatum datum) {
+            MasterDatum[] data = Arrays.copyOf(this.data, Math.max(this.data.length, BlazeMapAPI.MASTER_DATA.keys().size()));
+            data[index] = datum;
+            return new Snapshot(data, version + 1);
+        }
+
+        Snapshot cleared() {
+            return new Snapshot(EMPTY.data, version + 1);
         }
     }
 }
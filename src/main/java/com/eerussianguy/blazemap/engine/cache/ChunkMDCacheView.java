@@ -1,33 +1,44 @@
 package com.eerussianguy.blazemap.engine.cache;
 
-import java.util.Set;
-
 import com.eerussianguy.blazemap.api.BlazeRegistry.Key;
 import com.eerussianguy.blazemap.api.pipeline.DataType;
 import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
 import com.eerussianguy.blazemap.api.util.DataSource;
+import com.eerussianguy.blazemap.engine.KeyMask;
 import com.eerussianguy.blazemap.engine.UnsafeGenerics;
 
 @SuppressWarnings("rawtypes")
 public class ChunkMDCacheView implements DataSource {
     private ChunkMDCache source;
-    private Set<Key<DataType>> filter;
+    private ChunkMDCache.Snapshot pinned;
+    private long filter;
 
     public ChunkMDCacheView() {}
 
+    /** Follow the cache, seeing every update as soon as it happens. */
     public ChunkMDCacheView setSource(ChunkMDCache source) {
         this.source = source;
+        this.pinned = null;
+        return this;
+    }
+
+    /** Stick to one version of the data. */
+    public ChunkMDCacheView setSource(ChunkMDCache.Snapshot pinned) {
+        this.source = null;
+        this.pinned = pinned;
         return this;
     }
 
-    public void setFilter(Set<Key<DataType>> filter) {
+    /** KeyMask of the DataTypes the reader declared as inputs. */
+    public void setFilter(long filter) {
         this.filter = filter;
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public <T extends MasterDatum> T get(Key<DataType<T>> key) {
-        if(!filter.contains(key)) return null;
-        return (T) source.get(UnsafeGenerics.stripKey(key));
+        if(!KeyMask.contains(filter, key)) return null;
+        Key<DataType> stripped = UnsafeGenerics.stripKey(key);
+        return (T) (pinned != null ? pinned.get(stripped) : source.get(stripped));
     }
 }
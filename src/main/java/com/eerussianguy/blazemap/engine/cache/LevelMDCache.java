@@ -1,12 +1,17 @@
 package com.eerussianguy.blazemap.engine.cache;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalNotification;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.level.ChunkPos;
@@ -15,41 +20,71 @@ import com.eerussianguy.blazemap.BlazeMap;
 import com.eerussianguy.blazemap.api.util.StorageAccess;
 import com.eerussianguy.blazemap.api.util.MinecraftStreams;
 import com.eerussianguy.blazemap.api.util.RegionPos;
+import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.engine.BlazeMapAsync;
 import com.eerussianguy.blazemap.lib.async.AsyncChainRoot;
+import com.eerussianguy.blazemap.lib.async.AsyncDataCruncher;
 import com.eerussianguy.blazemap.lib.async.DebouncingDomain;
 
 public class LevelMDCache {
     private static final ResourceLocation NODE = BlazeMap.resource("md-cache");
     private final LoadingCache<RegionPos, RegionMDCache> regions;
+    // Evicted regions whose last state isn't on disk yet. Loading one of these takes it back instead of reading the file.
+    private final Map<RegionPos, RegionMDCache> evicted = new ConcurrentHashMap<>();
     private final StorageAccess storage;
     private final DebouncingDomain<RegionMDCache> debouncer;
     private final AsyncChainRoot asyncChain;
+    private final AtomicLong weight = new AtomicLong();
+    private final long budget;
 
     public LevelMDCache(final StorageAccess storage, AsyncChainRoot asyncChain) {
         this.storage = storage;
         this.asyncChain = asyncChain;
         this.debouncer = new DebouncingDomain<>(BlazeMapAsync.instance().debouncer, this::persist, 5_000, 30_000, BlazeMap.LOGGER);
 
+        this.budget = BlazeMapConfig.COMMON.mdCacheBudget.get() * 1024L * 1024L;
+
         this.regions = CacheBuilder.newBuilder()
-            .maximumSize(256)
+            // A single segment, otherwise Guava splits the budget between segments and evicts at a fraction of it
+            .concurrencyLevel(1)
+            .maximumWeight(budget)
+            .weigher((RegionPos pos, RegionMDCache cache) -> weigh(cache))
             .expireAfterAccess(15, TimeUnit.MINUTES)
+            .recordStats()
             .removalListener((RemovalNotification<RegionPos, RegionMDCache> regionCache) -> {
+                // Replaced by itself, that's just getRegionCache() having it weighed again
+                if(regionCache.getCause() == RemovalCause.REPLACED) return;
+                RegionMDCache cache = regionCache.getValue();
+                weight.addAndGet(-cache.weight);
+                cache.weight = 0;
+
                 // Make sure region cache on disk reflects its last known state before evicting
-                debouncer.push(regionCache.getValue());
+                evicted.put(cache.pos(), cache);
+                debouncer.push(cache);
             })
             .build(new CacheLoader<>() {
                 @Override
                 public RegionMDCache load(RegionPos key) {
+                    // Still being saved, the file may be behind it
+                    RegionMDCache pending = evicted.remove(key);
+                    if(pending != null) return pending;
+
                     RegionMDCache cache = new RegionMDCache(key, debouncer);
                     String file = getFilename(key);
+                    boolean legacy = !storage.exists(NODE, file);
+                    if(legacy) file = getLegacyFilename(key);
 
                     if(storage.exists(NODE, file)){
                         // Try to greedily acquire file lock
                         if (!cache.fileLock.readLock().tryLock()) cache.fileLock.readLock().lock();
 
                         try(MinecraftStreams.Input stream = storage.read(NODE, file)) {
-                            cache.read(stream);
+                            if(legacy) {
+                                cache.readLegacy(stream);
+                            }
+                            else {
+                                cache.read(stream);
+                            }
                         }
                         catch (Exception e) {
                             // Unlocking old cache before we discard cache
@@ -65,6 +100,7 @@ public class LevelMDCache {
                                 cache.fileLock.readLock().unlock();
                             }
                         }
+                        cache.legacyFile = legacy;
                     }
 
                     return cache;
@@ -73,43 +109,77 @@ public class LevelMDCache {
     }
 
     private void persist(RegionMDCache cache) {
-        if(!cache.isDirty()) return;
+        boolean dirty = cache.beginSave();
+        if(!dirty && !evicted.containsKey(cache.pos())) return;
         asyncChain.runOnDataThread(() -> {
             String buffer = getBufferFile(cache.pos());
             String file = getFilename(cache.pos());
 
             cache.bufferLock.lock();
             try {
+                // Nothing new, but a save already underway has to be done before the region can be let go
+                if(!dirty) {
+                    release(cache);
+                    return;
+                }
+
                 try(MinecraftStreams.Output stream = storage.write(NODE, buffer)) {
                     cache.write(stream);
                 }
-                catch(IOException e) {
+                catch(IOException | RuntimeException e) {
                     BlazeMap.LOGGER.warn("Error writing cache buffer {}. Will try again later", buffer);
                     e.printStackTrace();
-                    debouncer.push(cache);
+                    cache.requestSave();
                     return;
                 }
 
                 cache.fileLock.writeLock().lock();
                 try {
                     storage.move(NODE, buffer, file);
+                    release(cache);
                 }
                 catch(IOException e) {
                     BlazeMap.LOGGER.warn("Error moving buffer to file {}. Will try again later", file);
                     e.printStackTrace();
-                    debouncer.push(cache);
+                    cache.requestSave();
+                    return;
                 }
                 finally {
                     cache.fileLock.writeLock().unlock();
-            }
+                }
+
+                // The new file is in place, the old one would never be read again
+                if(cache.legacyFile) {
+                    String legacy = getLegacyFilename(cache.pos());
+                    try {
+                        storage.delete(NODE, legacy);
+                        cache.legacyFile = false;
+                    }
+                    catch(IOException e) {
+                        BlazeMap.LOGGER.warn("Error deleting legacy cache file {}. Will try again later", legacy);
+                        e.printStackTrace();
+                    }
+                }
             }
             finally {
                 cache.bufferLock.unlock();
             }
-        });
+        }, AsyncDataCruncher.Lane.PERSISTENCE);
+    }
+
+    /** Lets an evicted region go once the file has all of it. Must hold its bufferLock. */
+    private void release(RegionMDCache cache) {
+        if(!cache.isDirty()) {
+            evicted.remove(cache.pos(), cache);
+        }
     }
 
     private static String getFilename(RegionPos pos) {
+        return pos + ".rmdx";
+    }
+
+    /** Unindexed format, only read to migrate it. Deleted once the first save in the new format is in place. */
+    private static String getLegacyFilename(RegionPos pos) {
         return pos + ".rmd";
     }
 
@@ -121,9 +191,21 @@ public class LevelMDCache {
         this.debouncer.finish();
     }
 
+    private int weigh(RegionMDCache cache) {
+        int bytes = cache.estimateBytes();
+        weight.addAndGet(bytes - cache.weight);
+        cache.weight = bytes;
+        return bytes;
+    }
+
     public RegionMDCache getRegionCache(RegionPos pos) {
         try {
-            return regions.get(pos);
+            RegionMDCache cache = regions.get(pos);
+            if(cache.needsReweigh()) {
+                // Guava only weighs entries as they go in, so put it in again once it grew enough to matter
+                regions.asMap().replace(pos, cache, cache);
+            }
+            return cache;
         }
         catch(ExecutionException e) {
             // FIXME: will happen when IOExceptions occur.
@@ -138,4 +220,18 @@ public class LevelMDCache {
     public ChunkMDCache getChunkCache(ChunkPos pos) {
         return getRegionCache(pos).getChunkCache(pos);
     }
+
+    public Stats stats() {
+        CacheStats stats = regions.stats();
+        return new Stats(regions.size(), weight.get(), budget, stats.hitCount(), stats.missCount(), stats.evictionCount());
+    }
+
+    public record Stats(long regions, long bytes, long budget, long hits, long misses, long evictions) {
+        public static final Stats EMPTY = new Stats(0, 0, 0, 0, 0, 0);
+
+        public double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+    }
 }
@@ -2,6 +2,9 @@ package com.eerussianguy.blazemap.engine.cache;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -16,12 +19,34 @@ import com.eerussianguy.blazemap.profiling.Profilers;
 
 public class RegionMDCache {
     private static final int CHUNKS = 0x20;
-    private static final byte VOID = 0x00, DATA = 0x01;
+    private static final int OVERHEAD_BYTES = 8 * 1024;
+    private static final int REWEIGH_CHUNKS = 32;
 
     private final ChunkCacheStore chunks = new ChunkCacheStore(CHUNKS * CHUNKS);
     private final DebouncingDomain<RegionMDCache> debouncer;
     private final RegionPos pos;
 
+    /** What's on disk. Chunks nobody asked for yet only exist in here, as bytes. */
+    private volatile RegionMDFile file;
+
+    /** Set when the file on disk is in an outdated format and must be rewritten even if nothing changes. */
+    private volatile boolean outdated;
+
+    /** One bit per chunk that changed since it was last written. */
+    private final AtomicLongArray dirtyChunks = new AtomicLongArray(CHUNKS * CHUNKS / 64);
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+
+    /** Set while a save is waiting in the debouncer, so chunks going dirty meanwhile don't need to push another. */
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
+
+    /** Set while an old unindexed file is still on disk, the LevelMDCache deletes it after the first save. */
+    volatile boolean legacyFile;
+
+    /** Bytes this region weighed when the LevelMDCache last weighed it. */
+    volatile int weight;
+    private final AtomicInteger loadedChunks = new AtomicInteger();
+    private volatile int weighedChunks;
+
     // These are both invoked at the LevelMDCache level, due to the movement between buffer and file
     public final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
     public final ReentrantLock bufferLock = new ReentrantLock();
@@ -32,50 +57,114 @@ public class RegionMDCache {
     }
 
     public boolean isDirty() {
-        for (ChunkMDCache.Persisted chunk : chunks) {
-            if (chunk != null && chunk.isDirty()) {
-                return true;
-            }
-        }
+        return outdated || dirtyCount.get() > 0;
+    }
 
-        return false;
+    boolean isDirty(int index) {
+        return (dirtyChunks.get(index >> 6) & (1L << (index & 63))) != 0;
     }
 
-    public void read(MinecraftStreams.Input stream) {
-        Profilers.FileOps.CACHE_READ_TIME_PROFILER.begin();
+    void markDirty(int index) {
+        int word = index >> 6;
+        long bit = 1L << (index & 63);
+        while(true) {
+            long bits = dirtyChunks.get(word);
+            if((bits & bit) != 0) return;
+            if(dirtyChunks.compareAndSet(word, bits, bits | bit)) break;
+        }
+        dirtyCount.incrementAndGet();
 
-        try {
-            for(int index = 0; index < chunks.length; index++) {
-                byte b = stream.readByte();
+        // Only push if there's no save on the way already, which spares the debouncer's lock almost every time
+        if(saveQueued.compareAndSet(false, true)) {
+            debouncer.push(this);
+        }
+    }
 
-                switch(b) {
-                    case VOID: continue;
-                    case DATA:
-                        ChunkMDCache.Persisted chunk = chunks.get(index);
-                        chunk.read(stream);
-                        break;
+    void markClean(int index) {
+        int word = index >> 6;
+        long bit = 1L << (index & 63);
+        while(true) {
+            long bits = dirtyChunks.get(word);
+            if((bits & bit) == 0) return;
+            if(dirtyChunks.compareAndSet(word, bits, bits & ~bit)) break;
+        }
+        dirtyCount.decrementAndGet();
+    }
 
-                    default: throw new RuntimeException("Unexpected byte flag: " + b);
-                }
+    /**
+     * Called when the debouncer hands the region over to be saved. From here on chunks going dirty queue another save,
+     * as there's no telling whether the write will still catch them.
+     * @return whether there is anything to save at all.
+     */
+    boolean beginSave() {
+        saveQueued.set(false);
+        return isDirty();
+    }
+
+    /** Only reads the file in, the chunks are deserialized when they're first needed. */
+    public void read(MinecraftStreams.Input stream) throws IOException {
+        Profilers.FileOps.CACHE_READ_TIME_PROFILER.begin();
+        try {
+            this.file = RegionMDFile.FORMAT.read(stream);
+            if(file.isOutdated()) {
+                this.outdated = true;
+                requestSave();
             }
-        } catch (IOException e) {
-            BlazeMap.LOGGER.error("Could not read region MD cache file. Skipping.", e);
+        }
+        finally {
+            Profilers.FileOps.CACHE_READ_TIME_PROFILER.end();
+        }
+    }
 
-        } finally {
+    /** Reads a file in the old unindexed format, which will be rewritten in the current one on the next save. */
+    public void readLegacy(MinecraftStreams.Input stream) throws IOException {
+        Profilers.FileOps.CACHE_READ_TIME_PROFILER.begin();
+        try {
+            this.file = RegionMDFile.FORMAT.readLegacy(stream);
+            this.outdated = true;
+            requestSave();
+        }
+        finally {
             Profilers.FileOps.CACHE_READ_TIME_PROFILER.end();
         }
     }
 
+    /**
+     * Only chunks that changed get serialized again, everything else is copied over from the current file as raw bytes.
+     * Chunks are marked clean only once the whole file made it into the stream.
+     */
     public void write(MinecraftStreams.Output stream) throws IOException {
         Profilers.FileOps.CACHE_WRITE_TIME_PROFILER.begin();
 
         try {
-            for(ChunkMDCache.Persisted chunk : chunks) {
-                if(chunk == null || chunk.isEmpty()) {
-                    stream.writeByte(VOID);
-                } else {
-                    stream.writeByte(DATA);
-                    chunk.write(stream);
+            RegionMDFile old = this.file;
+            RegionMDFile.Writer writer = new RegionMDFile.Writer(old);
+            ChunkMDCache.Persisted[] written = new ChunkMDCache.Persisted[chunks.length];
+            ChunkMDCache.Snapshot[] snapshots = new ChunkMDCache.Snapshot[chunks.length];
+
+            for(int index = 0; index < chunks.length; index++) {
+                ChunkMDCache.Persisted chunk = chunks.peek(index);
+                if(chunk == null || !isDirty(index)) {
+                    writer.copy(index);
+                    continue;
+                }
+
+                ChunkMDCache.Snapshot snapshot = chunk.snapshot();
+                if(!snapshot.isEmpty()) {
+                    writer.write(index, snapshot.data);
+                }
+                written[index] = chunk;
+                snapshots[index] = snapshot;
+            }
+
+            RegionMDFile file = writer.build(false);
+            RegionMDFile.FORMAT.write(file, stream);
+
+            this.file = file;
+            this.outdated = false;
+            for(int index = 0; index < chunks.length; index++) {
+                if(written[index] != null) {
+                    written[index].markWritten(snapshots[index]);
                 }
             }
         }
@@ -84,6 +173,37 @@ public class RegionMDCache {
         }
     }
 
+    /** Deserialize a chunk from the file, if it's in there. */
+    private void load(ChunkMDCache.Persisted chunk, int index) {
+        RegionMDFile file = this.file;
+        if(file == null || !file.hasSlot(index)) return;
+
+        try {
+            chunk.load(file.read(index));
+        }
+        catch(IOException e) {
+            BlazeMap.LOGGER.error("Could not read chunk {} of region MD cache {}. Skipping.", index, pos, e);
+        }
+    }
+
+    /** Rough estimate of the heap held by this region: the file's bytes plus every chunk deserialized so far. */
+    int estimateBytes() {
+        this.weighedChunks = loadedChunks.get();
+
+        long bytes = OVERHEAD_BYTES;
+        RegionMDFile file = this.file;
+        if(file != null) bytes += file.size();
+        for(ChunkMDCache.Persisted chunk : chunks) {
+            if(chunk != null) bytes += chunk.estimateBytes();
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /** Regions start out light and get heavier as chunks are loaded, so they need weighing again every now and then. */
+    boolean needsReweigh() {
+        return loadedChunks.get() - weighedChunks >= REWEIGH_CHUNKS;
+    }
+
     public final ChunkMDCache getChunkCache(ChunkPos chunk) {
         int x = chunk.getRegionLocalX();
         int z = chunk.getRegionLocalZ();
@@ -97,6 +217,7 @@ public class RegionMDCache {
     }
 
     void requestSave(){
+        saveQueued.set(true);
         debouncer.push(this);
     }
 
@@ -121,12 +242,22 @@ public class RegionMDCache {
             // The if is only here to minimise the amount of objects unnecessarily created, since the cache
             // will already exist most of the time, thus minimising GC
             if (chunksAtomicArray.get(index) == null) {
-                chunksAtomicArray.compareAndSet(index, null, new ChunkMDCache.Persisted(RegionMDCache.this));
+                // Racing threads may both deserialize the chunk, but only one of them gets to publish it
+                ChunkMDCache.Persisted chunk = new ChunkMDCache.Persisted(RegionMDCache.this, index);
+                load(chunk, index);
+                if(chunksAtomicArray.compareAndSet(index, null, chunk)) {
+                    loadedChunks.incrementAndGet();
+                }
             }
 
             return chunksAtomicArray.get(index);
         }
 
+        /** Get the chunk only if it was already loaded. */
+        public ChunkMDCache.Persisted peek(int index) {
+            return chunksAtomicArray.get(index);
+        }
+
         public Iterator<ChunkMDCache.Persisted> iterator() {
             return new ChunkCacheIterator();
         }
@@ -0,0 +1,257 @@
+package com.eerussianguy.blazemap.engine.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.minecraft.resources.ResourceLocation;
+
+import com.eerussianguy.blazemap.BlazeMap;
+import com.eerussianguy.blazemap.api.BlazeMapAPI;
+import com.eerussianguy.blazemap.api.BlazeRegistry;
+import com.eerussianguy.blazemap.api.pipeline.DataType;
+import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
+import com.eerussianguy.blazemap.api.util.MinecraftStreams;
+import com.eerussianguy.blazemap.lib.io.Format;
+import com.eerussianguy.blazemap.lib.io.FormatSpec;
+import com.eerussianguy.blazemap.lib.io.FormatVersion;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+/**
+ * Raw contents of a region MD cache file: an offset table with one slot per chunk, followed by the serialized chunks.
+ *
+ * Opening a region only reads the bytes in, chunks get deserialized one by one the first time something asks for them.
+ * Likewise, chunks that weren't touched since the region was opened are written back by copying their bytes as-is.
+ *
+ * Chunks refer to DataTypes by their index in the file's key table instead of spelling out the ResourceLocation every
+ * time, and each DataType writes its compact encoding. On disk the whole thing is Deflate compressed.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class RegionMDFile {
+    static final int SLOTS = 0x20 * 0x20;
+    private static final byte VOID = 0x00, DATA = 0x01; // legacy slot flags
+    private static final int BUFFER = 16 * 1024;
+
+    static final Format<RegionMDFile> FORMAT = new FormatSpec<>((byte) 0x00, new CompressedFormat())
+        .setLegacyLoader(RegionMDFile::readLegacy)
+        .freeze();
+
+    private final List<ResourceLocation> keys;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final byte[] data;
+    private final boolean outdated;
+
+    private RegionMDFile(List<ResourceLocation> keys, int[] offsets, int[] lengths, byte[] data, boolean outdated) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.data = data;
+        this.outdated = outdated;
+    }
+
+    boolean hasSlot(int slot) {
+        return lengths[slot] > 0;
+    }
+
+    /** Set when this was converted from an older format and should be written back in the current one. */
+    boolean isOutdated() {
+        return outdated;
+    }
+
+    int size() {
+        return data.length;
+    }
+
+    MasterDatum[] read(int slot) throws IOException {
+        try(MinecraftStreams.Input stream = new MinecraftStreams.Input(new ByteArrayInputStream(data, offsets[slot], lengths[slot]))) {
+            int entries = stream.readVarInt();
+            MasterDatum[] chunk = new MasterDatum[BlazeMapAPI.MASTER_DATA.keys().size()];
+
+            for(int i = 0; i < entries; i++) {
+                int index = stream.readVarInt();
+                if(index >= keys.size()) throw new IOException("MD key index out of bounds: " + index);
+                BlazeRegistry.Key<DataType> key = key(keys.get(index));
+                chunk[key.ordinal()] = key.value().deserializeCompact(stream);
+            }
+            return chunk;
+        }
+    }
+
+    private static BlazeRegistry.Key<DataType> key(ResourceLocation location) throws IOException {
+        BlazeRegistry.Key<DataType> key = (BlazeRegistry.Key<DataType>) (Object) BlazeMapAPI.MASTER_DATA.findOrCreate(location);
+        if(key.value() == null) {
+            BlazeMap.LOGGER.warn("Unrecognised DataType in MD cache. Did you uninstall a Blaze Map extension? Skipping cache read");
+            throw new IOException("Cannot deserialize unregistered MD DataType");
+        }
+        return key;
+    }
+
+
+    // =================================================================================================================
+    static class Writer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        private final MinecraftStreams.Output stream = new MinecraftStreams.Output(bytes); // unbuffered, writes go straight through
+        private final int[] offsets = new int[SLOTS];
+        private final int[] lengths = new int[SLOTS];
+        private final List<ResourceLocation> keys = new ArrayList<>();
+        private final Object2IntOpenHashMap<ResourceLocation> indices = new Object2IntOpenHashMap<>();
+        private final RegionMDFile source;
+
+        /** Copied slots come from the source, whose key table we extend so their key indices stay valid. */
+        Writer(RegionMDFile source) {
+            this.source = source;
+            if(source != null) {
+                for(ResourceLocation key : source.keys) {
+                    indices.put(key, keys.size());
+                    keys.add(key);
+                }
+            }
+        }
+
+        void write(int slot, MasterDatum[] data) throws IOException {
+            offsets[slot] = bytes.size();
+
+            int entries = 0;
+            for(MasterDatum datum : data) {
+                if(datum != null) entries++;
+            }
+            stream.writeVarInt(entries);
+
+            List<BlazeRegistry.Key<DataType<MasterDatum>>> registry = BlazeMapAPI.MASTER_DATA.keys();
+            for(int i = 0; i < data.length; i++) {
+                if(data[i] == null) continue;
+                BlazeRegistry.Key<DataType<MasterDatum>> key = registry.get(i);
+
+                stream.writeVarInt(indexOf(key.location));
+                key.value().serializeCompact(stream, data[i]);
+            }
+
+            lengths[slot] = bytes.size() - offsets[slot];
+        }
+
+        void copy(int slot) {
+            if(source == null || !source.hasSlot(slot)) return;
+            offsets[slot] = bytes.size();
+            bytes.write(source.data, source.offsets[slot], source.lengths[slot]);
+            lengths[slot] = source.lengths[slot];
+        }
+
+        private int indexOf(ResourceLocation key) {
+            int index = indices.getOrDefault(key, -1);
+            if(index < 0) {
+                index = keys.size();
+                indices.put(key, index);
+                keys.add(key);
+            }
+            return index;
+        }
+
+        RegionMDFile build(boolean outdated) {
+            return new RegionMDFile(keys, offsets, lengths, bytes.toByteArray(), outdated);
+        }
+    }
+
+
+    // =================================================================================================================
+    private static class CompressedFormat implements FormatVersion<RegionMDFile> {
+        @Override
+        public void write(RegionMDFile file, MinecraftStreams.Output stream) throws IOException {
+            Deflater deflater = new Deflater();
+            try {
+                DeflaterOutputStream deflate = new DeflaterOutputStream(stream, deflater, BUFFER);
+                MinecraftStreams.Output output = new MinecraftStreams.Output(deflate); // not closed, it'd close our stream
+
+                output.writeVarInt(SLOTS);
+                output.writeVarInt(file.keys.size());
+                for(ResourceLocation key : file.keys) {
+                    output.writeResourceLocation(key);
+                }
+                for(int slot = 0; slot < SLOTS; slot++) {
+                    output.writeVarInt(file.lengths[slot]);
+                }
+                // Laid out in slot order, so the offsets don't need to be stored
+                for(int slot = 0; slot < SLOTS; slot++) {
+                    output.write(file.data, file.offsets[slot], file.lengths[slot]);
+                }
+
+                output.flush();
+                deflate.finish();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public RegionMDFile read(MinecraftStreams.Input stream) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                MinecraftStreams.Input input = new MinecraftStreams.Input(new InflaterInputStream(stream, inflater, BUFFER));
+
+                int slots = input.readVarInt();
+                if(slots != SLOTS) throw new IOException("Unexpected region MD slot count: " + slots);
+
+                int count = input.readVarInt();
+                List<ResourceLocation> keys = new ArrayList<>(count);
+                for(int i = 0; i < count; i++) {
+                    keys.add(input.readResourceLocation());
+                }
+
+                int[] offsets = new int[SLOTS];
+                int[] lengths = new int[SLOTS];
+                long size = 0;
+                for(int slot = 0; slot < SLOTS; slot++) {
+                    offsets[slot] = (int) size;
+                    lengths[slot] = input.readVarInt();
+                    size += lengths[slot];
+                    if(lengths[slot] < 0 || size > Integer.MAX_VALUE - 8) {
+                        throw new IOException("Region MD slot " + slot + " is out of bounds");
+                    }
+                }
+
+                byte[] data = new byte[(int) size];
+                input.readFully(data);
+                return new RegionMDFile(keys, offsets, lengths, data, false);
+            }
+            finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /** The old unindexed format, a flag per slot followed by the chunk data. Has to be deserialized in one go. */
+    private static RegionMDFile readLegacy(MinecraftStreams.Input stream) throws IOException {
+        Writer writer = new Writer(null);
+        for(int slot = 0; slot < SLOTS; slot++) {
+            byte b = stream.readByte();
+            switch(b) {
+                case VOID: continue;
+                case DATA:
+                    writer.write(slot, readUncompressed(stream));
+                    break;
+
+                default: throw new IOException("Unexpected byte flag: " + b);
+            }
+        }
+        return writer.build(true);
+    }
+
+    /** Chunk data as the unindexed format wrote it: full keys, regular DataType encoding. */
+    private static MasterDatum[] readUncompressed(MinecraftStreams.Input stream) throws IOException {
+        int entries = stream.readInt();
+        MasterDatum[] data = new MasterDatum[BlazeMapAPI.MASTER_DATA.keys().size()];
+
+        for(int i = 0; i < entries; i++) {
+            BlazeRegistry.Key<DataType> key = key(stream.readResourceLocation());
+            data[key.ordinal()] = key.value().deserialize(stream);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,77 @@
+package com.eerussianguy.blazemap.engine.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mojang.blaze3d.platform.NativeImage;
+
+/**
+ * Reusable chunk sized NativeImages for layers to render into, one pool per tile width.
+ *
+ * NativeImages live off-heap and are only freed when closed (or, eventually, when the GC gets to finalize them), so
+ * allocating one per layer per chunk made native memory grow for as long as the game ran. Every image handed out by
+ * acquire() must be given back with release() once it's been copied into the region tiles.
+ */
+public class ChunkTilePool {
+    private static final int MAX_POOLED = 64; // per width, more than enough for every data thread at once
+    private static final int MAX_WIDTH = 16;
+
+    @SuppressWarnings("unchecked")
+    private static final Queue<NativeImage>[] POOLS = new Queue[MAX_WIDTH + 1];
+    private static final AtomicInteger[] POOLED = new AtomicInteger[MAX_WIDTH + 1];
+    private static final AtomicInteger live = new AtomicInteger(), pixels = new AtomicInteger();
+
+    static {
+        for(int width = 0; width <= MAX_WIDTH; width++) {
+            POOLS[width] = new ConcurrentLinkedQueue<>();
+            POOLED[width] = new AtomicInteger();
+        }
+    }
+
+    /** A blank (fully transparent) image of width x width pixels. */
+    public static NativeImage acquire(int width) {
+        NativeImage image = POOLS[width].poll();
+        if(image == null) {
+            live.incrementAndGet();
+            pixels.addAndGet(width * width);
+            return new NativeImage(NativeImage.Format.RGBA, width, width, true);
+        }
+
+        POOLED[width].decrementAndGet();
+        image.fillRect(0, 0, width, width, 0);
+        return image;
+    }
+
+    public static void release(NativeImage image) {
+        int width = image.getWidth();
+        if(POOLED[width].incrementAndGet() <= MAX_POOLED) {
+            POOLS[width].offer(image);
+            return;
+        }
+
+        POOLED[width].decrementAndGet();
+        live.decrementAndGet();
+        pixels.addAndGet(-width * width);
+        image.close();
+    }
+
+
+    // =================================================================================================================
+    // Debug Info Access
+    public static int getLiveImages() {
+        return live.get();
+    }
+
+    public static int getPooledImages() {
+        int pooled = 0;
+        for(AtomicInteger count : POOLED) {
+            pooled += count.get();
+        }
+        return pooled;
+    }
+
+    public static int getNativeBytes() {
+        return pixels.get() * 4;
+    }
+}
@@ -13,22 +13,29 @@ import net.minecraft.world.level.Level;
 import net.minecraft.world.level.storage.LevelResource;
 import net.minecraftforge.client.event.ClientPlayerNetworkEvent;
 import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.event.entity.player.PlayerEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 
 import com.eerussianguy.blazemap.BlazeMap;
 import com.eerussianguy.blazemap.api.event.DimensionChangedEvent;
 import com.eerussianguy.blazemap.api.event.ClientEngineEvent;
+import com.eerussianguy.blazemap.api.BlazeRegistry.Key;
+import com.eerussianguy.blazemap.api.maps.Layer;
 import com.eerussianguy.blazemap.api.maps.LayerRegion;
+import com.eerussianguy.blazemap.api.maps.TileResolution;
 import com.eerussianguy.blazemap.api.markers.MarkerStorage;
 import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
 import com.eerussianguy.blazemap.api.pipeline.PipelineType;
+import com.eerussianguy.blazemap.api.util.RegionPos;
 import com.eerussianguy.blazemap.api.util.StorageAccess;
 import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.engine.BlazeMapAsync;
+import com.eerussianguy.blazemap.engine.Pipeline;
 import com.eerussianguy.blazemap.engine.RegistryController;
 import com.eerussianguy.blazemap.engine.storage.InternalStorage;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCache;
+import com.eerussianguy.blazemap.engine.cache.LevelMDCache;
 import com.eerussianguy.blazemap.engine.storage.PublicStorage;
 import com.eerussianguy.blazemap.engine.storage.StorageType;
 import com.eerussianguy.blazemap.lib.Helpers;
@@ -114,6 +121,12 @@ public class ClientEngine {
         running = false;
     }
 
+    @SubscribeEvent
+    public static void onClientTick(TickEvent.ClientTickEvent event) {
+        if(event.phase != TickEvent.Phase.END || activePipeline == null) return;
+        activePipeline.tick(Pipeline.collectionDeadline());
+    }
+
     @SubscribeEvent
     public static void onChangeWorld(PlayerEvent.PlayerChangedDimensionEvent event) {
         switchToPipeline(event.getTo());
@@ -219,6 +232,29 @@ public class ClientEngine {
         return activePipeline.getDirtyChunks();
     }
 
+    public static int queuedChunks() {
+        return activePipeline.getQueuedChunks();
+    }
+
+    public static int deferredChunks() {
+        return activePipeline.getDeferredChunks();
+    }
+
+    public static long totalDeferredChunks() {
+        return activePipeline.getTotalDeferredChunks();
+    }
+
+    /** Load tiles the map is about to need, without waiting for them or notifying anyone once they're in. */
+    public static void prefetchTiles(List<Key<Layer>> layers, List<RegionPos> regions, TileResolution resolution) {
+        if(activePipeline == null) return;
+        activePipeline.prefetchTiles(layers, regions, resolution);
+    }
+
+    public static LevelMDCache.Stats mdCacheStats() {
+        if(activePipeline == null || !activePipeline.isMDCached()) return LevelMDCache.Stats.EMPTY;
+        return activePipeline.getMDCache().stats();
+    }
+
     public static String avgFPS(){
         return Minecraft.getInstance().fpsString.split(" ")[0];
     }
@@ -1,9 +1,11 @@
 package com.eerussianguy.blazemap.engine.client;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -11,6 +13,7 @@ import java.util.stream.Stream;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import net.minecraft.client.Minecraft;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
@@ -23,12 +26,15 @@ import com.eerussianguy.blazemap.api.pipeline.*;
 import com.eerussianguy.blazemap.api.util.RegionPos;
 import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.config.ServerConfig;
+import com.eerussianguy.blazemap.engine.KeyMask;
 import com.eerussianguy.blazemap.engine.Pipeline;
+import com.eerussianguy.blazemap.engine.PipelinePlan;
 import com.eerussianguy.blazemap.engine.PipelineProfiler;
-import com.eerussianguy.blazemap.engine.UnsafeGenerics;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCache;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCacheView;
 import com.eerussianguy.blazemap.engine.storage.InternalStorage;
+import com.eerussianguy.blazemap.engine.storage.TileArchive;
+import com.eerussianguy.blazemap.lib.Colors;
 import com.eerussianguy.blazemap.lib.Helpers;
 import com.eerussianguy.blazemap.lib.async.*;
 import com.mojang.blaze3d.platform.NativeImage;
@@ -36,9 +42,13 @@ import com.mojang.blaze3d.platform.NativeImage;
 import static com.eerussianguy.blazemap.profiling.Profilers.Client.*;
 
 class ClientPipeline extends Pipeline {
+    private static final int PREFETCH_BUDGET = 4; // tile loads in flight at once, so prefetching can't hog the disk
+    private static final TileResolution LEGACY_COARSEST = TileResolution.EIGHTH; // anything past it may be missing from older worlds
     private static final PipelineProfiler CLIENT_PIPELINE_PROFILER = new PipelineProfiler(
         COLLECTOR_TIME_PROFILER,
         COLLECTOR_LOAD_PROFILER,
+        SNAPSHOT_COLLECTOR_TIME_PROFILER,
+        SNAPSHOT_COLLECTOR_LOAD_PROFILER,
         TRANSFORMER_TIME_PROFILER,
         TRANSFORMER_LOAD_PROFILER,
         PROCESSOR_TIME_PROFILER,
@@ -49,10 +59,14 @@ class ClientPipeline extends Pipeline {
     public final Set<Key<MapType>> availableMapTypes;
     public final Set<Key<Layer>> availableLayers;
     private final Layer[] layers;
+    private final PipelinePlan.Step<Layer>[] layerSteps;
     public final int numLayers;
     private final Map<TileResolution, Map<Key<Layer>, LoadingCache<RegionPos, LayerRegionTile>>> tiles =
             new ConcurrentHashMap<TileResolution, Map<Key<Layer>, LoadingCache<RegionPos, LayerRegionTile>>>();
-    private final DebouncingDomain<LayerRegionTile> dirtyTiles;
+    private final DebouncingDomain<TileArchive> dirtyArchives;
+    private final Map<TileArchive, Set<LayerRegionTile>> dirtyTiles = new ConcurrentHashMap<>();
+    private final Set<PendingTile> pendingTiles = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger prefetching = new AtomicInteger();
     private final PriorityLock lock = new PriorityLock();
     private boolean active, cold;
 
@@ -76,14 +90,12 @@ class ClientPipeline extends Pipeline {
         this.availableLayers = availableMapTypes.stream().map(k -> k.value().getLayers()).flatMap(Set::stream).filter(l -> l.value().shouldRenderInDimension(dimension)).collect(Collectors.toUnmodifiableSet());
         this.layers = availableLayers.stream().map(Key::value).filter(l -> l.type.isPipelined).toArray(Layer[]::new);
         this.numLayers = layers.length;
+        this.layerSteps = PipelinePlan.steps(Arrays.asList(layers), l -> KeyMask.of(l.getInputIDs()), l -> KeyMask.NONE);
 
         // Set up debouncing mechanisms
-        this.dirtyTiles = new DebouncingDomain<>(debouncer, region -> async.runOnDataThread(() -> {
-            TILE_LOAD_PROFILER.hit();
-            TILE_TIME_PROFILER.begin();
-            region.save();
-            TILE_TIME_PROFILER.end();
-        }), 2500, 30000, BlazeMap.LOGGER);
+        this.dirtyArchives = new DebouncingDomain<>(debouncer, archive -> async.runOnDataThread(
+            () -> saveTiles(archive), AsyncDataCruncher.Lane.PERSISTENCE
+        ), 2500, 30000, BlazeMap.LOGGER);
 
         this.useMDCache();
     }
@@ -116,17 +128,28 @@ class ClientPipeline extends Pipeline {
         chain
             .thenOnGameThread($ -> {
                 if(!active){ // When the pipeline is shut down, abort processing.
-                    return Collections.EMPTY_LIST;
+                    return new CollectedChunk(Collections.EMPTY_LIST, null);
                 }
                 if(level.get().getChunkSource().hasChunk(pos.x, pos.z)) {
-                    data.addAll(runCollectors(pos));
+                    return runCollectors(pos, data);
                 }
-                return data;
+                return new CollectedChunk(data, null);
             })
-            .thenOnDataThread(d -> processMasterData(pos, d))
+            .thenOnDataThread(collected -> processMasterData(pos, runSnapshotCollectors(pos, collected)))
             .execute();
     }
 
+    @Override
+    protected List<ChunkPos> getCollectionFocus() {
+        var player = Helpers.getPlayer();
+        return player == null ? List.of() : List.of(player.chunkPosition());
+    }
+
+    @Override
+    protected int getBiomeBlendRadius() {
+        return Minecraft.getInstance().options.biomeBlendRadius;
+    }
+
     void redrawFromMD(ChunkPos pos) {
         async.begin()
             .thenOnDataThread($ -> deleteChunkTile(pos))
@@ -138,8 +161,7 @@ class ClientPipeline extends Pipeline {
     private Void regenChunkTile(ChunkPos pos) {
         ChunkMDCache cache = mdCache.getChunkCache(pos);
         ChunkMDCacheView view = CACHE_VIEWS.get().setSource(cache);
-        Set<Key<DataType>> diff = cache.keys();
-        onPipelineOutput(pos, diff, view, cache);
+        onPipelineOutput(pos, cache.keyMask(), view, cache);
         return null;
     }
 
@@ -147,14 +169,25 @@ class ClientPipeline extends Pipeline {
         RegionPos regionPos = new RegionPos(chunkPos);
         Set<LayerRegion> updates = new HashSet<>();
         for(TileResolution resolution : TileResolution.values()) {
-            NativeImage layerChunkTile = new NativeImage(NativeImage.Format.RGBA, resolution.chunkWidth, resolution.chunkWidth, true);
-            for(Layer layer : layers) {
-                Key<Layer> layerID = layer.getID();
-                LayerRegionTile layerRegionTile = getLayerRegionTile(layerID, regionPos, resolution);
-                layerRegionTile.updateTile(layerChunkTile, chunkPos);
-                updates.add(new LayerRegion(layerID, regionPos));
+            if(resolution.chunksPerPixel > 1) continue;
+            NativeImage layerChunkTile = ChunkTilePool.acquire(resolution.chunkWidth);
+            try {
+                for(Layer layer : layers) {
+                    Key<Layer> layerID = layer.getID();
+                    LayerRegionTile layerRegionTile = getLayerRegionTile(layerID, regionPos, resolution);
+                    if(layerRegionTile.updateTile(layerChunkTile, chunkPos) != null) {
+                        queueSave(layerRegionTile);
+                        updates.add(new LayerRegion(layerID, regionPos));
+                    }
+                }
+            }
+            finally {
+                ChunkTilePool.release(layerChunkTile);
             }
         }
+        for(Layer layer : layers) {
+            updateCoarseRegions(layer.getID(), regionPos, chunkPos, updates);
+        }
         if(updates.size() > 0) {
             async.runOnGameThread(() -> sendMapUpdates(updates));
         }
@@ -176,21 +209,47 @@ class ClientPipeline extends Pipeline {
     // -  - add LayerRegion to the list of updated images to send a notification for
     @Override
     @SuppressWarnings("rawtypes")
-    protected void onPipelineOutput(ChunkPos chunkPos, Set<Key<DataType>> diff, ChunkMDCacheView view, ChunkMDCache cache) {
+    protected void onPipelineOutput(ChunkPos chunkPos, long diff, ChunkMDCacheView view, ChunkMDCache cache) {
+        int first = PipelinePlan.firstAffected(layerSteps, diff);
+        if(first < 0) return;
+
         try {
             RegionPos regionPos = new RegionPos(chunkPos);
-            Set<LayerRegion> updates = new HashSet<>();
+            Set<LayerRegion> updates = ConcurrentHashMap.newKeySet();
             LAYER_LOAD_PROFILER.hit();
             LAYER_TIME_PROFILER.begin();
 
-            for(Layer layer : layers) {
-                if(Collections.disjoint(layer.getInputIDs(), diff)) continue;
-                Key<Layer> layerID = layer.getID();
+            // Layers don't depend on each other, so when several need redrawing they're rendered in parallel
+            Runnable[] renders = new Runnable[numLayers];
+            int count = 0;
+            for(int i = first; i < numLayers; i++) {
+                PipelinePlan.Step<Layer> step = layerSteps[i];
+                if(!step.isAffectedBy(diff)) continue;
+                renders[count++] = () -> renderLayer(step, chunkPos, regionPos, cache, updates);
+            }
+            async.runAllOnDataThreads(renders, count);
 
-                for(TileResolution resolution : TileResolution.values()) {
-                    NativeImage layerChunkTile = new NativeImage(NativeImage.Format.RGBA, resolution.chunkWidth, resolution.chunkWidth, true);
-                    view.setFilter(UnsafeGenerics.stripKeys(layer.getInputIDs())); // the layer should only access declared collectors
+            if(updates.size() > 0) {
+                async.runOnGameThread(() -> sendMapUpdates(updates));
+            }
+        }
+        finally {
+            LAYER_TIME_PROFILER.end();
+        }
+    }
 
+    private void renderLayer(PipelinePlan.Step<Layer> step, ChunkPos chunkPos, RegionPos regionPos, ChunkMDCache cache, Set<LayerRegion> updates) {
+        Layer layer = step.component();
+        Key<Layer> layerID = layer.getID();
+        ChunkMDCacheView view = CACHE_VIEWS.get().setSource(cache); // may be on another thread than the caller's view
+        view.setFilter(step.inputs()); // the layer should only access declared collectors
+
+        boolean changed = false;
+        if(!layer.supportsDownsampling()) {
+            for(TileResolution resolution : TileResolution.values()) {
+                if(resolution.chunksPerPixel > 1) break;
+                NativeImage layerChunkTile = ChunkTilePool.acquire(resolution.chunkWidth);
+                try {
                     // Calculate chunk grid offsets. Don't let negatives pass.
                     int xOff = chunkPos.x % resolution.pixelWidth;
                     int zOff = chunkPos.z % resolution.pixelWidth;
@@ -199,49 +258,166 @@ class ClientPipeline extends Pipeline {
 
                     // only generate updates if the renderer populates the tile
                     // this is determined by the return value of renderTile being true
-                    if(layer.renderTile(layerChunkTile, resolution, view, xOff, zOff)) {
-
-                        // update this chunk of the region
-                        LayerRegionTile layerRegionTile = getLayerRegionTile(layerID, regionPos, resolution);
-                        layerRegionTile.updateTile(layerChunkTile, chunkPos);
+                    changed = layer.renderTile(layerChunkTile, resolution, view, xOff, zOff)
+                        && updateLayerRegion(layerID, regionPos, chunkPos, resolution, layerChunkTile, updates);
+                }
+                finally {
+                    ChunkTilePool.release(layerChunkTile);
+                }
+            }
+            if(changed) updateCoarseRegions(layerID, regionPos, chunkPos, updates);
+            return;
+        }
 
-                        // asynchronously save this region later
-                        if(layerRegionTile.isDirty()) {
-                            dirtyTiles.push(layerRegionTile);
-                        }
+        // Render FULL only, then every following resolution is the previous one shrunk to half, in the same image.
+        NativeImage layerChunkTile = ChunkTilePool.acquire(TileResolution.FULL.chunkWidth);
+        try {
+            if(!layer.renderTile(layerChunkTile, TileResolution.FULL, view, 0, 0)) return;
 
-                        // updates for the listeners
-                        updates.add(new LayerRegion(layerID, regionPos));
-                    }
+            for(TileResolution resolution : TileResolution.values()) {
+                if(resolution.chunksPerPixel > 1) break;
+                if(resolution != TileResolution.FULL) {
+                    downsample(layerChunkTile, resolution.chunkWidth);
                 }
+                changed = updateLayerRegion(layerID, regionPos, chunkPos, resolution, layerChunkTile, updates);
+            }
+        }
+        finally {
+            ChunkTilePool.release(layerChunkTile);
+        }
+        if(changed) updateCoarseRegions(layerID, regionPos, chunkPos, updates);
+    }
+
+    /**
+     * Dirty tiles are saved per archive, all of the archive's tiles that are due in one go. The sets are only ever
+     * changed inside compute(), so a tile can't slip into a set that saveTiles() already took away.
+     */
+    private void queueSave(LayerRegionTile tile) {
+        TileArchive archive = tile.getArchive();
+        dirtyTiles.compute(archive, ($, pending) -> {
+            if(pending == null) pending = ConcurrentHashMap.newKeySet();
+            pending.add(tile);
+            return pending;
+        });
+        dirtyArchives.push(archive);
+    }
+
+    private void saveTiles(TileArchive archive) {
+        Set<LayerRegionTile> pending = dirtyTiles.remove(archive);
+        if(pending == null) return;
+
+        TILE_TIME_PROFILER.begin();
+        List<LayerRegionTile> saving = new ArrayList<>(pending.size());
+        List<TileArchive.Tile> data = new ArrayList<>(pending.size());
+        try {
+            for(LayerRegionTile tile : pending) {
+                TileArchive.Tile encoded = tile.beginSave();
+                if(encoded == null) continue;
+                saving.add(tile);
+                data.add(encoded);
+                TILE_LOAD_PROFILER.hit();
             }
 
-            if(updates.size() > 0) {
-                async.runOnGameThread(() -> sendMapUpdates(updates));
+            boolean written = false;
+            try {
+                archive.write(data);
+                written = true;
+            }
+            catch(IOException e) {
+                // FIXME: this needs to hook into a reporting mechanism
+                BlazeMap.LOGGER.error("Error saving {} LayerRegionTiles, will try again later", data.size(), e);
+            }
+            finally {
+                for(LayerRegionTile tile : saving) {
+                    tile.endSave(written);
+                    if(!written) queueSave(tile);
+                }
             }
         }
         finally {
-            LAYER_TIME_PROFILER.end();
+            TILE_TIME_PROFILER.end();
+        }
+    }
+
+    /** @return whether the region tile changed at all. */
+    private boolean updateLayerRegion(Key<Layer> layerID, RegionPos regionPos, ChunkPos chunkPos, TileResolution resolution, NativeImage layerChunkTile, Set<LayerRegion> updates) {
+        // update this chunk of the region, nothing else to do if the pixels were the same
+        LayerRegionTile layerRegionTile = getLayerRegionTile(layerID, regionPos, resolution);
+        if(layerRegionTile.updateTile(layerChunkTile, chunkPos) == null) return false;
+
+        // asynchronously save this region later
+        queueSave(layerRegionTile);
+
+        // updates for the listeners
+        updates.add(new LayerRegion(layerID, regionPos));
+        return true;
+    }
+
+    /**
+     * Resolutions where a pixel covers several chunks can't be rendered from just one chunk. Instead, the pixel this
+     * chunk is part of is averaged from the next finer resolution's tile, one level at a time, and only as long as
+     * something keeps changing. Call after the finer resolutions are up to date.
+     */
+    private void updateCoarseRegions(Key<Layer> layerID, RegionPos regionPos, ChunkPos chunkPos, Set<LayerRegion> updates) {
+        TileResolution[] resolutions = TileResolution.values();
+        for(int i = 1; i < resolutions.length; i++) {
+            TileResolution resolution = resolutions[i];
+            if(resolution.chunksPerPixel == 1) continue;
+
+            LayerRegionTile finer = getLayerRegionTile(layerID, regionPos, resolutions[i - 1]);
+            LayerRegionTile layerRegionTile = getLayerRegionTile(layerID, regionPos, resolution);
+            if(layerRegionTile.updateFrom(finer, chunkPos) == null) return;
+
+            queueSave(layerRegionTile);
+            updates.add(new LayerRegion(layerID, regionPos));
+        }
+    }
+
+    /**
+     * Box filter: every pixel of the top left width x width square becomes the alpha weighted average of the 2x2 block it covers.
+     * Going in row order, each pixel is only overwritten after the one it feeds into has been computed.
+     */
+    private static void downsample(NativeImage tile, int width) {
+        for(int z = 0; z < width; z++) {
+            for(int x = 0; x < width; x++) {
+                int a = tile.getPixelRGBA(x * 2, z * 2);
+                int b = tile.getPixelRGBA(x * 2 + 1, z * 2);
+                int c = tile.getPixelRGBA(x * 2, z * 2 + 1);
+                int d = tile.getPixelRGBA(x * 2 + 1, z * 2 + 1);
+                tile.setPixelRGBA(x, z, Colors.average(a, b, c, d));
+            }
         }
     }
 
+    private LoadingCache<RegionPos, LayerRegionTile> getTileCache(Key<Layer> layer, TileResolution resolution) {
+        return tiles
+            .computeIfAbsent(resolution, $ -> new ConcurrentHashMap<>())
+            .computeIfAbsent(layer, $ -> CacheBuilder.newBuilder()
+                .maximumSize(256 * 1024 / resolution.regionSizeKb)
+                .expireAfterAccess(resolution.cacheTime, TimeUnit.SECONDS)
+                .removalListener(lrt -> ((LayerRegionTile) lrt.getValue()).destroy())
+                .build(new CacheLoader<>() {
+                    @Override
+                    public LayerRegionTile load(RegionPos pos) {
+                        LayerRegionTile layerRegionTile = new LayerRegionTile(storage, layer, pos, resolution);
+                        layerRegionTile.tryLoad();
+                        if(layerRegionTile.isEmpty() && resolution.pixelWidth > LEGACY_COARSEST.pixelWidth) {
+                            // Possibly mapped before this resolution existed, build it from what's there
+                            TileResolution finer = TileResolution.values()[resolution.ordinal() - 1];
+                            layerRegionTile.fillFrom(getLayerRegionTile(layer, pos, finer));
+                        }
+                        if(layerRegionTile.isDirty()) {
+                            queueSave(layerRegionTile); // loaded from an outdated format, or built from a finer one
+                        }
+                        return layerRegionTile;
+                    }
+                })
+            );
+    }
+
     private LayerRegionTile getLayerRegionTile(Key<Layer> layer, RegionPos region, TileResolution resolution) {
         try {
-            return tiles
-                .computeIfAbsent(resolution, $ -> new ConcurrentHashMap<>())
-                .computeIfAbsent(layer, $ -> CacheBuilder.newBuilder()
-                    .maximumSize(256 * 1024 / resolution.regionSizeKb)
-                    .expireAfterAccess(resolution.cacheTime, TimeUnit.SECONDS)
-                    .removalListener(lrt -> ((LayerRegionTile) lrt.getValue()).destroy())
-                    .build(new CacheLoader<>() {
-                        @Override
-                        public LayerRegionTile load(RegionPos pos) {
-                            LayerRegionTile layerRegionTile = new LayerRegionTile(storage, layer, pos, resolution);
-                            layerRegionTile.tryLoad();
-                            return layerRegionTile;
-                        }
-                    })
-                ).get(region);
+            return getTileCache(layer, resolution).get(region);
         }
         catch(ExecutionException e) {
             // Should never happen as the loader code does not throw exceptions.
@@ -249,6 +425,70 @@ class ClientPipeline extends Pipeline {
         }
     }
 
+    /**
+     * For whoever is drawing the map, which can't afford to wait on the disk: only returns tiles already in memory.
+     * Missing ones get loaded on the interactive lane, and listeners are told about the region once it's there.
+     */
+    private LayerRegionTile getLoadedLayerRegionTile(Key<Layer> layer, RegionPos region, TileResolution resolution) {
+        LayerRegionTile tile = getTileCache(layer, resolution).getIfPresent(region);
+        if(tile != null) {
+            tile.onRendered();
+            return tile;
+        }
+
+        PendingTile pending = new PendingTile(layer, region, resolution);
+        if(pendingTiles.add(pending)) {
+            async.runOnDataThread(() -> {
+                try {
+                    if(!active) return;
+                    if(getLayerRegionTile(layer, region, resolution).isEmpty()) return; // nothing to see, nothing to redraw
+                }
+                finally {
+                    pendingTiles.remove(pending);
+                }
+                async.runOnGameThread(() -> sendMapUpdates(Set.of(new LayerRegion(layer, region))));
+            }, AsyncDataCruncher.Lane.INTERACTIVE);
+        }
+        return null;
+    }
+
+    /**
+     * Warm the cache up for tiles the map will probably need soon, nearest first. At most PREFETCH_BUDGET loads run at
+     * once, whatever doesn't fit is simply dropped, as the map will ask again on its next update if it still cares.
+     */
+    void prefetchTiles(List<Key<Layer>> layers, List<RegionPos> regions, TileResolution resolution) {
+        if(!active) return;
+        for(RegionPos region : regions) {
+            for(Key<Layer> layer : layers) {
+                if(!availableLayers.contains(layer) || layer.value().type != Layer.Type.PHYSICAL) continue;
+                if(getTileCache(layer, resolution).getIfPresent(region) != null) continue;
+
+                if(prefetching.incrementAndGet() > PREFETCH_BUDGET) {
+                    prefetching.decrementAndGet();
+                    return;
+                }
+
+                PendingTile pending = new PendingTile(layer, region, resolution);
+                if(!pendingTiles.add(pending)) {
+                    prefetching.decrementAndGet();
+                    continue;
+                }
+
+                async.runOnDataThread(() -> {
+                    try {
+                        if(active) getLayerRegionTile(layer, region, resolution).onPrefetched();
+                    }
+                    finally {
+                        pendingTiles.remove(pending);
+                        prefetching.decrementAndGet();
+                    }
+                }, AsyncDataCruncher.Lane.PERSISTENCE);
+            }
+        }
+    }
+
+    private record PendingTile(Key<Layer> layer, RegionPos region, TileResolution resolution) {}
+
     private void sendMapUpdates(Set<LayerRegion> updates) {
         if(active) {
             for(LayerRegion update : updates) {
@@ -258,14 +498,20 @@ class ClientPipeline extends Pipeline {
     }
 
     public int getDirtyTiles() {
-        return dirtyTiles.size();
+        int count = 0;
+        for(Set<LayerRegionTile> pending : dirtyTiles.values()) {
+            count += pending.size();
+        }
+        return count;
     }
 
     public void shutdown() {
         active = false;
         dirtyChunks.clear();
+        clearCollectionQueue();
         mdCache.flush();
-        dirtyTiles.finish();
+        dirtyArchives.finish();
+        pendingTiles.clear();
         tiles.values().forEach(r -> r.forEach((lr, c) -> c.invalidateAll()));
         tiles.clear();
     }
@@ -282,7 +528,10 @@ class ClientPipeline extends Pipeline {
         }
         Layer layer = key.value();
         switch(layer.type) {
-            case PHYSICAL -> getLayerRegionTile(key, region, resolution).consume(consumer);
+            case PHYSICAL -> {
+                LayerRegionTile tile = getLoadedLayerRegionTile(key, region, resolution);
+                if(tile != null) tile.consume(consumer);
+            }
             case SYNTHETIC -> consumer.accept(((SyntheticLayer)layer).getPixelSource(dimension, region, resolution));
             case INVISIBLE -> throw new UnsupportedOperationException("Impossible to consume pixel data from invisible layer: " + key);
         }
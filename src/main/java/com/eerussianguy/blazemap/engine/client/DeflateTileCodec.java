@@ -0,0 +1,83 @@
+package com.eerussianguy.blazemap.engine.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * The raw RGBA pixels through Deflate at its fastest setting, straight from and into the image's native buffer.
+ * Skips everything PNG does on top (filtering, CRCs, chunks) and never copies the pixels around on the Java heap.
+ */
+class DeflateTileCodec implements TileCodec {
+    private static final byte[] SIGNATURE = {'B', 'M', 'R', 'D'};
+    private static final int HEADER = 12;
+    private static final int BUFFER = 16 * 1024;
+
+    @Override
+    public byte[] encode(NativeImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        ByteBuffer pixels = MemoryUtil.memByteBuffer(LayerRegionTile.pixels(image), width * height * 4);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(pixels);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER);
+            out.writeBytes(ByteBuffer.allocate(HEADER).put(SIGNATURE).putInt(width).putInt(height).array());
+            byte[] buffer = new byte[BUFFER];
+            while(!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public NativeImage decode(byte[] data) throws IOException {
+        if(data.length < HEADER) throw new IOException("Deflate tile is too short");
+        ByteBuffer header = ByteBuffer.wrap(data);
+        int width = header.getInt(4), height = header.getInt(8);
+        if(width <= 0 || height <= 0 || (long) width * height > 1 << 24) {
+            throw new IOException("Invalid Deflate tile size: " + width + " x " + height);
+        }
+
+        NativeImage image = new NativeImage(NativeImage.Format.RGBA, width, height, false);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER, data.length - HEADER);
+            ByteBuffer pixels = MemoryUtil.memByteBuffer(LayerRegionTile.pixels(image), width * height * 4);
+            while(pixels.hasRemaining()) {
+                if(inflater.inflate(pixels) == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Deflate tile is truncated");
+                }
+            }
+            return image;
+        }
+        catch(DataFormatException e) {
+            image.close();
+            throw new IOException("Corrupted Deflate tile", e);
+        }
+        catch(IOException | RuntimeException e) {
+            image.close();
+            throw e;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public boolean matches(byte[] data) {
+        return TileCodec.startsWith(data, SIGNATURE);
+    }
+}
@@ -3,11 +3,13 @@ package com.eerussianguy.blazemap.engine.client;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.level.ChunkPos;
 
 import com.eerussianguy.blazemap.BlazeMap;
@@ -16,26 +18,44 @@ import com.eerussianguy.blazemap.api.maps.Layer;
 import com.eerussianguy.blazemap.api.maps.PixelSource;
 import com.eerussianguy.blazemap.api.maps.TileResolution;
 import com.eerussianguy.blazemap.api.util.RegionPos;
+import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.engine.storage.InternalStorage;
+import com.eerussianguy.blazemap.engine.storage.TileArchive;
+import com.eerussianguy.blazemap.lib.Colors;
+import com.eerussianguy.blazemap.mixin.NativeImageAccessor;
 import com.eerussianguy.blazemap.profiling.Profilers;
 import com.mojang.blaze3d.platform.NativeImage;
 
+/**
+ * The image of one layer for one region, at one resolution.
+ *
+ * Readers (mostly the map renderer) must never wait on the data threads, so the image is double buffered: readers only
+ * ever see the published front buffer, while updates go into the back buffer which is then published in its place.
+ * The old front becomes the new back and is brought up to date once whoever was still reading it is done.
+ * Tiles that are only loaded and never updated don't bother with a back buffer at all.
+ */
 public class LayerRegionTile {
     private static final Object MUTEX = new Object();
-    private static volatile int instances = 0, loaded = 0;
-
-    private final ReentrantReadWriteLock imageLock = new ReentrantReadWriteLock();
-    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
-    private final ReentrantLock bufferLock = new ReentrantLock();
-
-    private final File file, buffer;
-    private NativeImage image;
-    private final PixelSource imageWrapper;
+    private static volatile int instances = 0;
+    private static final AtomicInteger prefetched = new AtomicInteger(), prefetchHits = new AtomicInteger();
+
+    /** Serializes everything that changes the buffers: loading, updating, destroying. */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    private final TileArchive archive;
+    private final ResourceLocation layer;
+    private final RegionPos region;
+    private final File legacyDir;
+    private volatile Buffer front;
+    private Buffer back; // only touched while holding the writeLock
     private final TileResolution resolution;
     private volatile boolean isEmpty = true;
     private volatile boolean isDirty = false;
     private volatile boolean destroyed = false;
+    private final AtomicBoolean unusedPrefetch = new AtomicBoolean();
 
+    /** Name of the standalone PNG tiles were saved as before they moved into archives. */
     public static String getImageName(RegionPos region) {
         return region + ".png";
     }
@@ -45,165 +65,329 @@ public class LayerRegionTile {
     }
 
     public LayerRegionTile(InternalStorage storage, BlazeRegistry.Key<Layer> layer, RegionPos region, TileResolution resolution) {
-        this.file = storage.getMipmapDir(layer.location, getImageName(region), resolution);
-        this.buffer = storage.getMipmapDir(layer.location, getBufferName(region), resolution);
+        this.archive = storage.getTileArchive(region);
+        this.legacyDir = storage.getLegacyMipmapDir(layer.location, resolution);
+        this.layer = layer.location;
+        this.region = region;
         this.resolution = resolution;
-
-        imageWrapper = new PixelSource() {
-            @Override
-            public int getPixel(int x, int y) {
-                return image.getPixelRGBA(x, y);
-            }
-
-            @Override
-            public int getWidth() {
-                return image.getWidth();
-            }
-
-            @Override
-            public int getHeight() {
-                return image.getHeight();
-            }
-        };
     }
 
     public void tryLoad() {
-        if(file.exists()) {
-            Profilers.FileOps.LAYER_READ_TIME_PROFILER.begin();
+        Profilers.FileOps.LAYER_READ_TIME_PROFILER.begin();
 
-            // Trying to greedily acquire the locks with `tryLock()` to minimise delay on game thread
-            // TODO: Figure out a "failure" case so the timed tryLock can be used instead to "give up"
-            // if it's waited too long, thereby not blocking the tick
-            if (!fileLock.readLock().tryLock()) fileLock.readLock().lock();
-            if (!imageLock.writeLock().tryLock()) imageLock.writeLock().lock();
+        // Trying to greedily acquire the lock with `tryLock()` to minimise delay on game thread
+        // TODO: Figure out a "failure" case so the timed tryLock can be used instead to "give up"
+        // if it's waited too long, thereby not blocking the tick
+        if (!writeLock.tryLock()) writeLock.lock();
 
-            try {
-                image = NativeImage.read(Files.newInputStream(file.toPath()));
-                isEmpty = false;
-            }
-            catch(IOException e) {
-                // FIXME: this needs to hook into a reporting mechanism AND possibly automated LRT regeneration
-                BlazeMap.LOGGER.error("Error loading LayerRegionTile: {}", file, e);
+        try {
+            byte[] data = archive.read(layer, resolution, region);
+            if(data == null) {
+                data = migrate();
             }
-            finally {
-                imageLock.writeLock().unlock();
-                fileLock.readLock().unlock();
-                Profilers.FileOps.LAYER_READ_TIME_PROFILER.end();
+            if(data != null) {
+                SparseImage image = SparseImage.decode(data, codec());
+                front = new Buffer(image);
+                isEmpty = false;
+
+                // Stored in some other format than the current one, like an old PNG. Rewrite it on the next save.
+                if(image.isOutdated()) {
+                    isDirty = true;
+                }
             }
         }
-        else {
-            file.getParentFile().mkdirs();
+        catch(IOException e) {
+            // FIXME: this needs to hook into a reporting mechanism AND possibly automated LRT regeneration
+            BlazeMap.LOGGER.error("Error loading LayerRegionTile: {} {} {}", layer, resolution, region, e);
+        }
+        finally {
+            writeLock.unlock();
+            Profilers.FileOps.LAYER_READ_TIME_PROFILER.end();
         }
         onCreate();
     }
 
+    /**
+     * Move the tile from its old standalone PNG into the archive, as-is. Returns null if there's no such file.
+     * Converting it into the configured format is left to the next save, like with any other outdated tile.
+     */
+    private byte[] migrate() throws IOException {
+        File file = new File(legacyDir, getImageName(region));
+        if(!file.exists()) return null;
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        try {
+            archive.write(layer, resolution, region, data);
+            Files.delete(file.toPath());
+            Files.deleteIfExists(new File(legacyDir, getBufferName(region)).toPath());
+        }
+        catch(IOException e) {
+            BlazeMap.LOGGER.warn("Could not migrate LayerRegionTile {} into its archive, will try again next time", file, e);
+        }
+        return data;
+    }
+
+    /** Save right away, on its own. Dirty tiles normally get saved in batches per archive, see beginSave(). */
     public void save() {
         if(isEmpty || !isDirty) return;
 
-        // Save image into buffer
         Profilers.FileOps.LAYER_WRITE_TIME_PROFILER.begin();
 
-        bufferLock.lock();
+        saveLock.lock();
         try {
-            imageLock.readLock().lock();
+            byte[] data = encode();
+            if(data == null) return;
+
             try {
-                image.writeToFile(buffer);
-                isDirty = false;
+                archive.write(layer, resolution, region, data);
             }
             catch(IOException e) {
                 // FIXME: this needs to hook into a reporting mechanism
-                BlazeMap.LOGGER.error("Error saving LayerRegionTile buffer: {}", buffer, e);
-                e.printStackTrace();
-                return;
-            }
-            finally {
-                imageLock.readLock().unlock();
+                BlazeMap.LOGGER.error("Error saving LayerRegionTile: {} {} {}", layer, resolution, region, e);
+                isDirty = true;
             }
+        } finally {
+            saveLock.unlock();
+            Profilers.FileOps.LAYER_WRITE_TIME_PROFILER.end();
+        }
+    }
 
-            // Move buffer to real image path
-            fileLock.writeLock().lock();
+    /**
+     * First half of saving several tiles into their archive at once. Returns what to write, or null if there's nothing
+     * to save, or if the tile is being saved by someone else right now (it stays dirty if that save misses anything).
+     * Anything but null must be followed by endSave() on the same thread, once the write is done or failed.
+     */
+    TileArchive.Tile beginSave() {
+        if(isEmpty || !isDirty) return null;
+        if(!saveLock.tryLock()) return null;
+
+        try {
+            byte[] data = encode();
+            if(data != null) return new TileArchive.Tile(layer, resolution, region, data);
+        }
+        catch(RuntimeException e) {
+            saveLock.unlock();
+            throw e;
+        }
+        saveLock.unlock();
+        return null;
+    }
+
+    void endSave(boolean written) {
+        if(!written) isDirty = true;
+        saveLock.unlock();
+    }
+
+    TileArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Must hold the saveLock. Whatever is published is a consistent version, anything updated later marks us dirty again.
+     * Only copying the pixels happens under the buffer's read lock, so updates waiting to catch the buffer up never have
+     * to wait out a whole encode.
+     */
+    private byte[] encode() {
+        // Cleared before looking at front: any update that sets it again after this has published what we'll copy
+        isDirty = false;
+
+        SparseImage pixels;
+        while(true) {
+            Buffer image = front;
+            if(image == null) return null;
+
+            image.lock.readLock().lock();
             try {
-                Files.move(buffer.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            }
-            catch(IOException e) {
-                // FIXME: this needs to hook into a reporting mechanism
-                BlazeMap.LOGGER.error("Error moving LayerRegionTile buffer to image: {} {}", buffer, file, e);
-                e.printStackTrace();
+                if(image.closed) return null;
+                if(image != front) continue; // swapped out meanwhile, that one is getting written to
+                pixels = image.image.copy();
+                break;
             }
             finally {
-                fileLock.writeLock().unlock();
+                image.lock.readLock().unlock();
             }
-        } finally {
-            bufferLock.unlock();
-            Profilers.FileOps.LAYER_WRITE_TIME_PROFILER.end();
+        }
+
+        try(pixels) {
+            return pixels.encode(codec());
+        }
+        catch(IOException e) {
+            // FIXME: this needs to hook into a reporting mechanism
+            BlazeMap.LOGGER.error("Error encoding LayerRegionTile: {} {} {}", layer, resolution, region, e);
+            isDirty = true;
+            return null;
         }
     }
 
-    public void updateTile(NativeImage tile, ChunkPos chunk) {
+    /**
+     * Copy the top left chunk sized square of the tile into this region's image.
+     * @return the area of the region image that changed, or null if nothing did.
+     */
+    public Change updateTile(NativeImage tile, ChunkPos chunk) {
         int xOffset = (chunk.getRegionLocalX() << 4) / resolution.pixelWidth;
         int zOffset = (chunk.getRegionLocalZ() << 4) / resolution.pixelWidth;
-        boolean wasEmpty = isEmpty;
 
-        // Since isDirty is a volatile bool for thread safety reasons, it's slightly more efficient to only update it once
-        // as updating it flushes the CPU write cache. So using a local var to track dirtiness until final value ready
-        boolean dirty = isDirty;
-
-        imageLock.writeLock().lock();
+        writeLock.lock();
         try {
-            if(isEmpty) {
-                image = new NativeImage(NativeImage.Format.RGBA, resolution.regionWidth, resolution.regionWidth, true);
-                isEmpty = false;
+            if(destroyed) return null;
+            if(back == null) {
+                back = front == null ? new Buffer(new SparseImage(resolution.regionWidth)) : front.copy();
             }
 
-            for(int x = 0; x < resolution.chunkWidth; x++) {
-                for(int z = 0; z < resolution.chunkWidth; z++) {
-                    int old = image.getPixelRGBA(xOffset + x, zOffset + z);
-                    int pixel = tile.getPixelRGBA(x, z);
-                    if(pixel != old) {
-                        image.setPixelRGBA(xOffset + x, zOffset + z, pixel);
-                        dirty = true;
-                    }
+            // Readers that lost the race against the last swap may still be holding on to it
+            Change change;
+            back.lock.writeLock().lock();
+            try {
+                change = back.image.update(tile, resolution.chunkWidth, xOffset, zOffset);
+            }
+            finally {
+                back.lock.writeLock().unlock();
+            }
+            if(change == null) return null;
+
+            // Publish, then catch the old version up once nobody is reading it anymore
+            Buffer old = front;
+            front = back;
+            back = old;
+            isEmpty = false;
+            isDirty = true;
+
+            if(old != null) {
+                old.lock.writeLock().lock();
+                try {
+                    old.image.update(tile, resolution.chunkWidth, xOffset, zOffset);
+                }
+                finally {
+                    old.lock.writeLock().unlock();
                 }
             }
+            return change;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * For resolutions where a pixel covers several chunks: the pixel this chunk is part of, averaged from the 2x2 pixels
+     * of the next finer tile. The writeLock is held from reading to writing, so chunks sharing the pixel can't undo
+     * each other's updates.
+     * @return the area of the region image that changed, or null if nothing did.
+     */
+    public Change updateFrom(LayerRegionTile finer, ChunkPos chunk) {
+        int x = (chunk.getRegionLocalX() << 4) / resolution.pixelWidth;
+        int z = (chunk.getRegionLocalZ() << 4) / resolution.pixelWidth;
+        NativeImage pixel = ChunkTilePool.acquire(1);
+
+        writeLock.lock();
+        try {
+            finer.consume(source -> pixel.setPixelRGBA(0, 0, average(source, x, z)));
+            return updateTile(pixel, chunk);
         }
         finally {
-            isDirty = dirty;
-            imageLock.writeLock().unlock();
+            writeLock.unlock();
+            ChunkTilePool.release(pixel);
         }
+    }
 
-        if(wasEmpty && !isEmpty) {
-            onFill();
+    /** Build the whole image from the next finer tile, for tiles that aren't on disk. Nothing happens if it isn't empty. */
+    void fillFrom(LayerRegionTile finer) {
+        writeLock.lock();
+        try {
+            if(destroyed || front != null) return;
+            finer.consume(source -> {
+                int width = resolution.regionWidth;
+                try(NativeImage image = new NativeImage(NativeImage.Format.RGBA, width, width, true)) {
+                    for(int z = 0; z < width; z++) {
+                        for(int x = 0; x < width; x++) {
+                            image.setPixelRGBA(x, z, average(source, x, z));
+                        }
+                    }
+                    front = new Buffer(SparseImage.of(image));
+                }
+            });
+            if(front != null) {
+                isEmpty = false;
+                isDirty = true;
+            }
+        }
+        finally {
+            writeLock.unlock();
         }
     }
 
+    private static int average(PixelSource finer, int x, int z) {
+        x *= 2;
+        z *= 2;
+        return Colors.average(finer.getPixel(x, z), finer.getPixel(x + 1, z), finer.getPixel(x, z + 1), finer.getPixel(x + 1, z + 1));
+    }
+
+    private static TileCodec codec() {
+        return TileCodec.of(BlazeMapConfig.CLIENT.tileCodec.get());
+    }
+
+    static long pixels(NativeImage image) {
+        long pixels = ((NativeImageAccessor) (Object) image).blazemap$getPixels();
+        if(pixels == 0) throw new IllegalStateException("Image is not allocated");
+        if(image.format() != NativeImage.Format.RGBA) throw new IllegalArgumentException("Expected an RGBA image");
+        return pixels;
+    }
+
+    /** Inclusive pixel bounds of what changed in the region image. */
+    public record Change(int minX, int minZ, int maxX, int maxZ) {}
+
     public boolean isDirty() {
         return isDirty;
     }
 
-    public void consume(Consumer<PixelSource> consumer) {
-        if(isEmpty) return;
+    public boolean isEmpty() {
+        return isEmpty;
+    }
 
-        imageLock.readLock().lock();
-        try {
-            consumer.accept(imageWrapper);
+    /** Loaded ahead of time because the map was expected to need it soon. */
+    void onPrefetched() {
+        if(unusedPrefetch.compareAndSet(false, true)) {
+            prefetched.incrementAndGet();
         }
-        finally {
-            imageLock.readLock().unlock();
+    }
+
+    /** The map asked for it and it was already in memory. Counts as a hit if it was there thanks to prefetching. */
+    void onRendered() {
+        if(unusedPrefetch.compareAndSet(true, false)) {
+            prefetchHits.incrementAndGet();
         }
     }
 
-    private void onCreate() {
-        synchronized(MUTEX) {
-            instances++;
-            if(!isEmpty) {
-                loaded += resolution.regionSizeKb;
+    /**
+     * Never waits on updates. Only buffers that aren't published get written to, so if we lose the race against a swap
+     * (whether the lock is taken or not) we just take the one that replaced it. Once we hold the read lock of the
+     * published buffer, it can't be written to until we're done.
+     */
+    public void consume(Consumer<PixelSource> consumer) {
+        while(true) {
+            Buffer image = front;
+            if(image == null) return;
+
+            if(image.lock.readLock().tryLock()) {
+                try {
+                    if(image == front) {
+                        if(!image.closed) {
+                            consumer.accept(image);
+                        }
+                        return;
+                    }
+                }
+                finally {
+                    image.lock.readLock().unlock();
+                }
             }
+            Thread.onSpinWait();
         }
     }
 
-    private void onFill() {
+    private void onCreate() {
         synchronized(MUTEX) {
-            loaded += resolution.regionSizeKb;
+            instances++;
         }
     }
 
@@ -213,30 +397,37 @@ public class LayerRegionTile {
         }
     }
 
+    /** What the tiles actually hold in pixel memory, which is only their blocks that aren't a single color. */
     public static int getLoadedKb() {
-        synchronized(MUTEX) {
-            return loaded;
-        }
+        return (int) (SparseImage.getNativeBytes() / 1024);
+    }
+
+    public static int getPrefetched() {
+        return prefetched.get();
+    }
+
+    public static int getPrefetchHits() {
+        return prefetchHits.get();
     }
 
     public void destroy() {
         if(destroyed) return;
 
-        // Update static vars
-        synchronized(MUTEX) {
-            instances--;
-            if(!isEmpty) {
-                loaded -= resolution.regionSizeKb;
-            }
-        }
-
-        imageLock.writeLock().lock();
+        writeLock.lock();
         try {
+            if(destroyed) return;
             save();
 
-            if(image != null) {
-                image.close();
-                image = null;
+            // Unpublish first so no new readers show up, then wait for the current ones to be done
+            Buffer image = front;
+            front = null;
+            close(image);
+            close(back);
+            back = null;
+
+            // Update static vars
+            synchronized(MUTEX) {
+                instances--;
             }
 
             isDirty = false;
@@ -244,7 +435,58 @@ public class LayerRegionTile {
             destroyed = true;
         }
         finally {
-            imageLock.writeLock().unlock();
+            writeLock.unlock();
+        }
+    }
+
+    private static void close(Buffer image) {
+        if(image == null) return;
+        image.lock.writeLock().lock();
+        try {
+            image.closed = true;
+            image.image.close();
+        }
+        finally {
+            image.lock.writeLock().unlock();
+        }
+    }
+
+
+    // =================================================================================================================
+    /** One version of the region image. Readers hold its read lock, it's only written while not published. */
+    private static class Buffer implements PixelSource {
+        private final SparseImage image;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean closed = false;
+
+        private Buffer(SparseImage image) {
+            this.image = image;
+        }
+
+        /** Only ever called on the front buffer, which is read locked so it can't get closed halfway through. */
+        private Buffer copy() {
+            lock.readLock().lock();
+            try {
+                return new Buffer(image.copy());
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int getPixel(int x, int y) {
+            return image.getPixel(x, y);
+        }
+
+        @Override
+        public int getWidth() {
+            return image.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return image.getHeight();
         }
     }
 }
@@ -0,0 +1,26 @@
+package com.eerussianguy.blazemap.engine.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import com.mojang.blaze3d.platform.NativeImage;
+
+/** What tiles used to be stored as. Only read anymore, zlib made it by far the slowest option to write. */
+class PngTileCodec implements TileCodec {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G'};
+
+    @Override
+    public byte[] encode(NativeImage image) {
+        throw new UnsupportedOperationException("PNG tiles are only read, never written");
+    }
+
+    @Override
+    public NativeImage decode(byte[] data) throws IOException {
+        return NativeImage.read(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public boolean matches(byte[] data) {
+        return TileCodec.startsWith(data, SIGNATURE);
+    }
+}
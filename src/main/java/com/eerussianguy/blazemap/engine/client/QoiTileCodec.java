@@ -0,0 +1,161 @@
+package com.eerussianguy.blazemap.engine.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * The Quite OK Image format (qoiformat.org): lossless, a single pass over the pixels with no entropy coding, which makes
+ * it many times faster than PNG both ways. Map tiles are mostly runs and small gradients, so it compresses them well.
+ *
+ * Works straight on the image's native buffer, where every pixel is an int with R in the lowest byte.
+ */
+class QoiTileCodec implements TileCodec {
+    private static final byte[] SIGNATURE = {'q', 'o', 'i', 'f'};
+    private static final int HEADER = 14, PADDING = 8;
+    private static final int OP_INDEX = 0x00, OP_DIFF = 0x40, OP_LUMA = 0x80, OP_RUN = 0xC0, OP_RGB = 0xFE, OP_RGBA = 0xFF;
+    private static final int MAX_RUN = 62;
+    private static final int OPAQUE_BLACK = 0xFF000000;
+
+    @Override
+    public byte[] encode(NativeImage image) {
+        int width = image.getWidth(), height = image.getHeight(), count = width * height;
+        long pixels = LayerRegionTile.pixels(image);
+
+        byte[] out = new byte[HEADER + count * 5 + PADDING]; // worst case, every pixel an OP_RGBA
+        ByteBuffer.wrap(out).put(SIGNATURE).putInt(width).putInt(height).put((byte) 4).put((byte) 0);
+        int p = HEADER;
+
+        int[] index = new int[64];
+        int previous = OPAQUE_BLACK, run = 0;
+        for(int i = 0; i < count; i++) {
+            int pixel = MemoryUtil.memGetInt(pixels + i * 4L);
+
+            if(pixel == previous) {
+                run++;
+                if(run == MAX_RUN || i == count - 1) {
+                    out[p++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+                continue;
+            }
+            if(run > 0) {
+                out[p++] = (byte) (OP_RUN | (run - 1));
+                run = 0;
+            }
+
+            int hash = hash(pixel);
+            if(index[hash] == pixel) {
+                out[p++] = (byte) (OP_INDEX | hash);
+            }
+            else if((pixel >>> 24) != (previous >>> 24)) {
+                index[hash] = pixel;
+                out[p++] = (byte) OP_RGBA;
+                out[p++] = (byte) pixel;
+                out[p++] = (byte) (pixel >> 8);
+                out[p++] = (byte) (pixel >> 16);
+                out[p++] = (byte) (pixel >> 24);
+            }
+            else {
+                index[hash] = pixel;
+                int dr = (byte) (pixel - previous); // wrapping around is part of the format
+                int dg = (byte) ((pixel >> 8) - (previous >> 8));
+                int db = (byte) ((pixel >> 16) - (previous >> 16));
+                int drg = dr - dg, dbg = db - dg;
+
+                if(dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                    out[p++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                }
+                else if(dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                    out[p++] = (byte) (OP_LUMA | (dg + 32));
+                    out[p++] = (byte) ((drg + 8) << 4 | (dbg + 8));
+                }
+                else {
+                    out[p++] = (byte) OP_RGB;
+                    out[p++] = (byte) pixel;
+                    out[p++] = (byte) (pixel >> 8);
+                    out[p++] = (byte) (pixel >> 16);
+                }
+            }
+            previous = pixel;
+        }
+
+        p += PADDING - 1;
+        out[p++] = 1; // end marker, seven zeroes and a one
+        return Arrays.copyOf(out, p);
+    }
+
+    @Override
+    public NativeImage decode(byte[] data) throws IOException {
+        if(data.length < HEADER + PADDING) throw new IOException("QOI tile is too short");
+        ByteBuffer header = ByteBuffer.wrap(data);
+        int width = header.getInt(4), height = header.getInt(8);
+        if(width <= 0 || height <= 0 || (long) width * height > 1 << 24) {
+            throw new IOException("Invalid QOI tile size: " + width + " x " + height);
+        }
+
+        NativeImage image = new NativeImage(NativeImage.Format.RGBA, width, height, false);
+        try {
+            long pixels = LayerRegionTile.pixels(image);
+            int[] index = new int[64];
+            int pixel = OPAQUE_BLACK, run = 0;
+            int p = HEADER, end = data.length - PADDING;
+
+            for(int i = 0, count = width * height; i < count; i++) {
+                if(run > 0) {
+                    run--;
+                }
+                else if(p < end) {
+                    int b1 = data[p++] & 0xFF;
+                    if(b1 == OP_RGB) {
+                        pixel = (pixel & 0xFF000000) | (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF) << 16;
+                        p += 3;
+                    }
+                    else if(b1 == OP_RGBA) {
+                        pixel = (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF) << 16 | (data[p + 3] & 0xFF) << 24;
+                        p += 4;
+                    }
+                    else {
+                        switch(b1 & 0xC0) {
+                            case OP_INDEX -> pixel = index[b1];
+                            case OP_DIFF -> pixel = add(pixel, ((b1 >> 4) & 3) - 2, ((b1 >> 2) & 3) - 2, (b1 & 3) - 2);
+                            case OP_LUMA -> {
+                                int b2 = data[p++] & 0xFF;
+                                int dg = (b1 & 0x3F) - 32;
+                                pixel = add(pixel, dg - 8 + ((b2 >> 4) & 0xF), dg, dg - 8 + (b2 & 0xF));
+                            }
+                            default -> run = b1 & 0x3F;
+                        }
+                    }
+                    index[hash(pixel)] = pixel;
+                }
+                MemoryUtil.memPutInt(pixels + i * 4L, pixel);
+            }
+            return image;
+        }
+        catch(RuntimeException e) {
+            image.close();
+            throw new IOException("Corrupted QOI tile", e);
+        }
+    }
+
+    @Override
+    public boolean matches(byte[] data) {
+        return TileCodec.startsWith(data, SIGNATURE);
+    }
+
+    private static int hash(int pixel) {
+        int r = pixel & 0xFF, g = (pixel >> 8) & 0xFF, b = (pixel >> 16) & 0xFF, a = pixel >>> 24;
+        return (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+    }
+
+    private static int add(int pixel, int dr, int dg, int db) {
+        int r = (pixel + dr) & 0xFF;
+        int g = ((pixel >> 8) + dg) & 0xFF;
+        int b = ((pixel >> 16) + db) & 0xFF;
+        return (pixel & 0xFF000000) | b << 16 | g << 8 | r;
+    }
+}
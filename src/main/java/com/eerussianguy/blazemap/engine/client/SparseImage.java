@@ -0,0 +1,289 @@
+package com.eerussianguy.blazemap.engine.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.eerussianguy.blazemap.api.maps.PixelSource;
+import com.eerussianguy.blazemap.api.util.MinecraftStreams;
+import com.mojang.blaze3d.platform.NativeImage;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A square RGBA image split into blocks of up to BLOCK x BLOCK pixels, where only blocks with actual detail in them get
+ * any pixel memory. Blocks that are all the same color (fully transparent, most commonly, or a stretch of ocean) are
+ * kept as just that color, both in memory and on disk.
+ *
+ * Not thread safe, LayerRegionTile takes care of that.
+ */
+public class SparseImage implements PixelSource, AutoCloseable {
+    private static final int BLOCK = 64;
+    private static final byte[] SIGNATURE = {'B', 'M', 'S', 'P'};
+    private static final byte TRANSPARENT = 0, UNIFORM = 1, DENSE = 2;
+    private static final AtomicLong nativeBytes = new AtomicLong();
+
+    private final int width, block, shift, mask, blocksPerSide;
+    private final NativeImage[] dense; // null where the block is uniform
+    private final int[] colors;
+    private boolean outdated;
+
+    public SparseImage(int width) {
+        if(Integer.bitCount(width) != 1) throw new IllegalArgumentException("Width must be a power of two: " + width);
+        this.width = width;
+        this.block = Math.min(BLOCK, width);
+        this.shift = Integer.numberOfTrailingZeros(block);
+        this.mask = block - 1;
+        this.blocksPerSide = width / block;
+        this.dense = new NativeImage[blocksPerSide * blocksPerSide];
+        this.colors = new int[blocksPerSide * blocksPerSide];
+    }
+
+    /** Split a regular image into blocks. The image is left as it is, closing it is up to the caller. */
+    public static SparseImage of(NativeImage image) {
+        if(image.getWidth() != image.getHeight()) throw new IllegalArgumentException("Image must be square");
+        SparseImage sparse = new SparseImage(image.getWidth());
+        long source = LayerRegionTile.pixels(image);
+        long stride = image.getWidth() * 4L;
+
+        for(int i = 0; i < sparse.dense.length; i++) {
+            long corner = source + ((long) (i / sparse.blocksPerSide) * sparse.block * image.getWidth() + (long) (i % sparse.blocksPerSide) * sparse.block) * 4;
+            int color = MemoryUtil.memGetInt(corner);
+            if(isUniform(corner, stride, sparse.block, color)) {
+                sparse.colors[i] = color;
+            }
+            else {
+                NativeImage block = sparse.allocate();
+                copyRows(corner, stride, LayerRegionTile.pixels(block), sparse.block * 4L, sparse.block);
+                sparse.dense[i] = block;
+            }
+        }
+        return sparse;
+    }
+
+
+    // =================================================================================================================
+    // Pixel access
+    @Override
+    public int getPixel(int x, int y) {
+        int index = (y >> shift) * blocksPerSide + (x >> shift);
+        NativeImage block = dense[index];
+        return block == null ? colors[index] : block.getPixelRGBA(x & mask, y & mask);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return width;
+    }
+
+    /** Whether this was decoded from anything else than the sparse format with the given codec for its blocks. */
+    public boolean isOutdated() {
+        return outdated;
+    }
+
+    public SparseImage copy() {
+        SparseImage copy = new SparseImage(width);
+        System.arraycopy(colors, 0, copy.colors, 0, colors.length);
+        for(int i = 0; i < dense.length; i++) {
+            if(dense[i] == null) continue;
+            NativeImage block = copy.allocate();
+            MemoryUtil.memCopy(LayerRegionTile.pixels(dense[i]), LayerRegionTile.pixels(block), (long) this.block * this.block * 4);
+            copy.dense[i] = block;
+        }
+        return copy;
+    }
+
+    /**
+     * Copy the top left size x size square of the tile to (x, z), which must all fall inside one block. Only the pixels
+     * that differ are written. Blocks get pixel memory once they stop being uniform, and let go of it if they become so.
+     * @return the area that changed, or null if nothing did.
+     */
+    public LayerRegionTile.Change update(NativeImage tile, int size, int x, int z) {
+        int index = (z >> shift) * blocksPerSide + (x >> shift);
+        long source = LayerRegionTile.pixels(tile);
+        long sourceStride = tile.getWidth() * 4L; // the tile can be wider than size, see downsampling
+        int color = MemoryUtil.memGetInt(source);
+        boolean uniform = isUniform(source, sourceStride, size, color);
+
+        NativeImage block = dense[index];
+        if(block == null) {
+            if(uniform && colors[index] == color) return null;
+            block = allocate();
+            fill(block, colors[index]);
+            dense[index] = block;
+        }
+
+        int lx = x & mask, lz = z & mask;
+        long target = LayerRegionTile.pixels(block) + ((long) lz * this.block + lx) * 4;
+        long targetStride = this.block * 4L;
+
+        int minX = size, minZ = -1, maxX = -1, maxZ = -1;
+        for(int row = 0; row < size; row++, source += sourceStride, target += targetStride) {
+            int first = 0;
+            while(first < size && MemoryUtil.memGetInt(source + first * 4L) == MemoryUtil.memGetInt(target + first * 4L)) first++;
+            if(first == size) continue;
+
+            int last = size - 1;
+            while(last > first && MemoryUtil.memGetInt(source + last * 4L) == MemoryUtil.memGetInt(target + last * 4L)) last--;
+
+            MemoryUtil.memCopy(source + first * 4L, target + first * 4L, (last - first + 1) * 4L);
+            minX = Math.min(minX, first);
+            maxX = Math.max(maxX, last);
+            if(minZ < 0) minZ = row;
+            maxZ = row;
+        }
+
+        // The block can only have become uniform if what was just written is
+        if(uniform && isUniform(LayerRegionTile.pixels(block), targetStride, this.block, color)) {
+            release(block);
+            dense[index] = null;
+            colors[index] = color;
+        }
+
+        if(maxZ < 0) return null;
+        return new LayerRegionTile.Change(x + minX, z + minZ, x + maxX, z + maxZ);
+    }
+
+
+    // =================================================================================================================
+    // Serialization
+    /** Uniform blocks take a few bytes at most, only the others go through the codec. */
+    public byte[] encode(TileCodec codec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(MinecraftStreams.Output stream = new MinecraftStreams.Output(bytes)) {
+            stream.write(SIGNATURE);
+            stream.writeVarInt(width);
+            stream.writeVarInt(block);
+
+            for(int i = 0; i < dense.length; i++) {
+                if(dense[i] != null) {
+                    byte[] data = codec.encode(dense[i]);
+                    stream.writeByte(DENSE);
+                    stream.writeVarInt(data.length);
+                    stream.write(data);
+                }
+                else if(colors[i] == 0) {
+                    stream.writeByte(TRANSPARENT);
+                }
+                else {
+                    stream.writeByte(UNIFORM);
+                    stream.writeInt(colors[i]);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads both the sparse format and whole images in any TileCodec's format, which are split into blocks here.
+     * Anything that isn't sparse with its blocks in the given codec comes out marked as outdated.
+     */
+    public static SparseImage decode(byte[] data, TileCodec codec) throws IOException {
+        if(!TileCodec.startsWith(data, SIGNATURE)) {
+            TileCodec format = TileCodec.detect(data);
+            try(NativeImage image = format.decode(data)) {
+                SparseImage sparse = of(image);
+                sparse.outdated = true;
+                return sparse;
+            }
+        }
+
+        try(MinecraftStreams.Input stream = new MinecraftStreams.Input(new ByteArrayInputStream(data, SIGNATURE.length, data.length - SIGNATURE.length))) {
+            int width = stream.readVarInt();
+            int block = stream.readVarInt();
+            if(width <= 0 || width > 4096 || Integer.bitCount(width) != 1 || block != Math.min(BLOCK, width)) {
+                throw new IOException("Invalid sparse tile layout: " + width + " / " + block);
+            }
+
+            SparseImage sparse = new SparseImage(width);
+            try {
+                for(int i = 0; i < sparse.dense.length; i++) {
+                    byte kind = stream.readByte();
+                    switch(kind) {
+                        case TRANSPARENT -> {}
+                        case UNIFORM -> sparse.colors[i] = stream.readInt();
+                        case DENSE -> {
+                            byte[] bytes = new byte[stream.readVarInt()];
+                            stream.readFully(bytes);
+                            TileCodec format = TileCodec.detect(bytes);
+                            NativeImage image = format.decode(bytes);
+                            if(image.getWidth() != block || image.getHeight() != block) {
+                                image.close();
+                                throw new IOException("Sparse tile block has the wrong size");
+                            }
+                            sparse.track(image);
+                            sparse.dense[i] = image;
+                            if(format != codec) sparse.outdated = true;
+                        }
+                        default -> throw new IOException("Unexpected sparse tile block: " + kind);
+                    }
+                }
+            }
+            catch(IOException | RuntimeException e) {
+                sparse.close();
+                throw e;
+            }
+            return sparse;
+        }
+    }
+
+
+    // =================================================================================================================
+    // Memory
+    private NativeImage allocate() {
+        NativeImage image = new NativeImage(NativeImage.Format.RGBA, block, block, true);
+        track(image);
+        return image;
+    }
+
+    private void track(NativeImage image) {
+        nativeBytes.addAndGet((long) image.getWidth() * image.getHeight() * 4);
+    }
+
+    private static void release(NativeImage image) {
+        nativeBytes.addAndGet(-(long) image.getWidth() * image.getHeight() * 4);
+        image.close();
+    }
+
+    @Override
+    public void close() {
+        for(int i = 0; i < dense.length; i++) {
+            if(dense[i] == null) continue;
+            release(dense[i]);
+            dense[i] = null;
+        }
+    }
+
+    /** Pixel memory held by all the dense blocks of every SparseImage there is. */
+    public static long getNativeBytes() {
+        return nativeBytes.get();
+    }
+
+    private static void fill(NativeImage block, int color) {
+        if(color == 0) return; // allocated zeroed
+        long pixels = LayerRegionTile.pixels(block);
+        for(int i = 0, count = block.getWidth() * block.getHeight(); i < count; i++) {
+            MemoryUtil.memPutInt(pixels + i * 4L, color);
+        }
+    }
+
+    private static boolean isUniform(long corner, long stride, int size, int color) {
+        for(int z = 0; z < size; z++, corner += stride) {
+            for(int x = 0; x < size; x++) {
+                if(MemoryUtil.memGetInt(corner + x * 4L) != color) return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copyRows(long source, long sourceStride, long target, long targetStride, int size) {
+        for(int z = 0; z < size; z++, source += sourceStride, target += targetStride) {
+            MemoryUtil.memCopy(source, target, size * 4L);
+        }
+    }
+}
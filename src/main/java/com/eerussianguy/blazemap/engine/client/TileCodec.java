@@ -0,0 +1,53 @@
+package com.eerussianguy.blazemap.engine.client;
+
+import java.io.IOException;
+
+import com.mojang.blaze3d.platform.NativeImage;
+
+/**
+ * How layer tiles are turned into bytes to be stored in their TileArchive, and back.
+ *
+ * Every codec's output starts with a signature of its own, so tiles can always be read back no matter which codec is
+ * configured at the time. Tiles found in any other format than the configured one get rewritten the next time they
+ * are saved, which also takes care of the PNGs tiles used to be. PNG can't be configured, it's only there to read those.
+ */
+public interface TileCodec {
+    TileCodec QOI = new QoiTileCodec();
+    TileCodec DEFLATE = new DeflateTileCodec();
+    /** Read only, for tiles saved before there were codecs. */
+    TileCodec PNG = new PngTileCodec();
+
+    /** The options in the config. Plain enum, so the config can load without touching any client classes. */
+    enum Type {
+        QOI, DEFLATE
+    }
+
+    byte[] encode(NativeImage image) throws IOException;
+
+    NativeImage decode(byte[] data) throws IOException;
+
+    /** Whether the data starts with this codec's signature. */
+    boolean matches(byte[] data);
+
+    static TileCodec of(Type type) {
+        return switch(type) {
+            case QOI -> QOI;
+            case DEFLATE -> DEFLATE;
+        };
+    }
+
+    static TileCodec detect(byte[] data) throws IOException {
+        for(TileCodec codec : new TileCodec[] {QOI, DEFLATE, PNG}) {
+            if(codec.matches(data)) return codec;
+        }
+        throw new IOException("Unrecognized tile format");
+    }
+
+    static boolean startsWith(byte[] data, byte[] signature) {
+        if(data.length < signature.length) return false;
+        for(int i = 0; i < signature.length; i++) {
+            if(data[i] != signature[i]) return false;
+        }
+        return true;
+    }
+}
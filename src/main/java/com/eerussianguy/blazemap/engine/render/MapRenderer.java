@@ -1,6 +1,7 @@
 package com.eerussianguy.blazemap.engine.render;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.function.Consumer;
@@ -31,11 +32,13 @@ import com.eerussianguy.blazemap.api.markers.*;
 import com.eerussianguy.blazemap.api.util.RegionPos;
 import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.engine.BlazeMapAsync;
+import com.eerussianguy.blazemap.engine.client.ClientEngine;
 import com.eerussianguy.blazemap.feature.BlazeMapFeaturesClient;
 import com.eerussianguy.blazemap.lib.Colors;
 import com.eerussianguy.blazemap.lib.Helpers;
 import com.eerussianguy.blazemap.lib.RenderHelper;
 import com.eerussianguy.blazemap.lib.async.AsyncAwaiter;
+import com.eerussianguy.blazemap.lib.async.AsyncDataCruncher;
 import com.eerussianguy.blazemap.profiling.Profiler;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.blaze3d.vertex.PoseStack;
@@ -102,6 +105,14 @@ public class MapRenderer implements AutoCloseable {
     private double zoom = 1;
     private TileResolution resolution;
 
+    // Where the view is headed, so the tiles it's about to show can be loaded ahead of time
+    private static final double PREFETCH_LOOKAHEAD = 1.5; // seconds
+    private static final long PREFETCH_IDLE_NANOS = 500_000_000L;
+    private double velocityX, velocityZ; // blocks per second
+    private long lastMove;
+    private int zoomDirection;
+    private long lastZoom;
+
     public MapRenderer(int width, int height, ResourceLocation textureResource, double minZoom, double maxZoom) {
         this.center = new BlockPos.MutableBlockPos();
         this.begin = new BlockPos.MutableBlockPos();
@@ -349,6 +360,54 @@ public class MapRenderer implements AutoCloseable {
         uploadTimer.end();
 
         needsUpdate = false;
+        prefetchTiles();
+    }
+
+    /**
+     * Warm up the tiles that are about to come into view: wherever the view will be if it keeps panning the way it is
+     * (following the player in the minimap, or being dragged around in the world map), and the next resolution over
+     * if it's being zoomed. The pipeline decides how many it actually loads.
+     */
+    private void prefetchTiles() {
+        if(layers_on.isEmpty()) return;
+
+        if(System.nanoTime() - lastMove < PREFETCH_IDLE_NANOS) {
+            int dx = (int) (velocityX * PREFETCH_LOOKAHEAD);
+            int dz = (int) (velocityZ * PREFETCH_LOOKAHEAD);
+            if(dx != 0 || dz != 0) {
+                List<RegionPos> regions = regionsAround(center.getX() + dx, center.getZ() + dz, mapWidth / 2, mapHeight / 2);
+                RegionPos first = offsets[0][0];
+                RegionPos[] column = offsets[offsets.length - 1];
+                RegionPos last = column[column.length - 1];
+                regions.removeIf(r -> r.x >= first.x && r.x <= last.x && r.z >= first.z && r.z <= last.z); // already visible
+                ClientEngine.prefetchTiles(layers_on, regions, resolution);
+            }
+        }
+
+        if(zoomDirection != 0 && System.nanoTime() - lastZoom >= PREFETCH_IDLE_NANOS) {
+            zoomDirection = 0; // stopped zooming, the next resolution over isn't coming anytime soon
+        }
+        if(zoomDirection != 0) {
+            double next = Helpers.clamp(minZoom, zoomDirection > 0 ? zoom * 2 : zoom / 2, maxZoom);
+            TileResolution nextResolution = next < 1 ? TileResolution.byZoom(next) : TileResolution.FULL;
+            if(nextResolution != null && nextResolution != resolution) {
+                int w2 = (int) (width / next / 2), h2 = (int) (height / next / 2);
+                ClientEngine.prefetchTiles(layers_on, regionsAround(center.getX(), center.getZ(), w2, h2), nextResolution);
+            }
+        }
+    }
+
+    /** Every region touching the given area, closest to its center first. */
+    private static List<RegionPos> regionsAround(int x, int z, int w2, int h2) {
+        RegionPos middle = new RegionPos(x >> 9, z >> 9);
+        List<RegionPos> regions = new ArrayList<>();
+        for(int rx = (x - w2) >> 9; rx <= (x + w2) >> 9; rx++) {
+            for(int rz = (z - h2) >> 9; rz <= (z + h2) >> 9; rz++) {
+                regions.add(new RegionPos(rx, rz));
+            }
+        }
+        regions.sort(Comparator.comparingInt(r -> Math.abs(r.x - middle.x) + Math.abs(r.z - middle.z)));
+        return regions;
     }
 
     // Run generateMapTile in an engine background thread. Useful for parallelizing massive workloads.
@@ -356,7 +415,7 @@ public class MapRenderer implements AutoCloseable {
         BlazeMapAsync.instance().clientChain.runOnDataThread(() -> {
             generateMapTile(texture, resolution, textureW, textureH, cornerXOffset, cornerZOffset, regionIndexX, regionIndexZ);
             jobs.done();
-        });
+        }, AsyncDataCruncher.Lane.INTERACTIVE);
     }
 
     private void generateMapTile(NativeImage texture, TileResolution resolution, int textureW, int textureH, int cornerXOffset, int cornerZOffset, int regionIndexX, int regionIndexZ) {
@@ -535,6 +594,8 @@ public class MapRenderer implements AutoCloseable {
         double prevZoom = this.zoom;
         zoom = Helpers.clamp(minZoom, zoom, maxZoom);
         if(prevZoom == zoom) return false;
+        this.zoomDirection = zoom > prevZoom ? 1 : -1;
+        this.lastZoom = System.nanoTime();
         this.zoom = debug.zoom = zoom;
         if(width > 0 && height > 0) {
             createImage();
@@ -589,11 +650,28 @@ public class MapRenderer implements AutoCloseable {
     }
 
     public void setCenter(int x, int z) {
+        trackVelocity(x - center.getX(), z - center.getZ());
         this.center.set(x, 0, z);
         makeOffsets();
         needsUpdate = true;
     }
 
+    private void trackVelocity(int dx, int dz) {
+        long now = System.nanoTime(), last = lastMove;
+        double seconds = (now - last) / 1_000_000_000D;
+        lastMove = now;
+
+        // Teleports, the first call, and coming back after a while tell us nothing about where the view is headed
+        if(last == 0 || seconds <= 0 || seconds > 1 || Math.abs(dx) > 512 || Math.abs(dz) > 512) {
+            velocityX = velocityZ = 0;
+            return;
+        }
+
+        // Smoothed, frame times and drag events are far too jittery to use as they are
+        velocityX += (dx / seconds - velocityX) * 0.25;
+        velocityZ += (dz / seconds - velocityZ) * 0.25;
+    }
+
     public void moveCenter(int x, int z) {
         setCenter(center.getX() + x, center.getZ() + z);
     }
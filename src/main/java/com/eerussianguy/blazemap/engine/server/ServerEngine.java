@@ -9,6 +9,7 @@ import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.storage.LevelResource;
 import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.event.server.ServerStartingEvent;
 import net.minecraftforge.event.server.ServerStoppedEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
@@ -29,6 +30,7 @@ public class ServerEngine {
     private static boolean isRunning;
     private static InternalStorage storage;
     private static int numCollectors = 0, numProcessors = 0, numTransformers = 0;
+    private static long ticks = 0;
 
     public static void init() {
         BlazeNetwork.initEngine();
@@ -62,6 +64,20 @@ public class ServerEngine {
         Profiler.setServerInstance(null);
     }
 
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if(event.phase != TickEvent.Phase.END || !isRunning) return;
+        Pipeline[] pipelines = PIPELINES.values().toArray(Pipeline[]::new);
+        if(pipelines.length == 0) return;
+
+        // All dimensions share the one budget. They take turns going first so a busy one can't starve the others.
+        long deadline = Pipeline.collectionDeadline();
+        int first = (int) (ticks++ % pipelines.length);
+        for(int i = 0; i < pipelines.length; i++) {
+            pipelines[(first + i) % pipelines.length].tick(deadline);
+        }
+    }
+
     public static void onChunkChanged(ResourceKey<Level> dim, ChunkPos pos) {
         if(!isRunning) return;
         getPipeline(dim).onChunkChanged(pos);
@@ -117,4 +133,28 @@ public class ServerEngine {
         }
         return dirty;
     }
+
+    public static int queuedChunks() {
+        int queued = 0;
+        for(Pipeline pipeline : PIPELINES.values()) {
+            queued += pipeline.getQueuedChunks();
+        }
+        return queued;
+    }
+
+    public static int deferredChunks() {
+        int deferred = 0;
+        for(Pipeline pipeline : PIPELINES.values()) {
+            deferred += pipeline.getDeferredChunks();
+        }
+        return deferred;
+    }
+
+    public static long totalDeferredChunks() {
+        long deferred = 0;
+        for(Pipeline pipeline : PIPELINES.values()) {
+            deferred += pipeline.getTotalDeferredChunks();
+        }
+        return deferred;
+    }
 }
\ No newline at end of file
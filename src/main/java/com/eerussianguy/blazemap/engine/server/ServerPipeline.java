@@ -19,10 +19,10 @@ import com.eerussianguy.blazemap.api.pipeline.DataType;
 import com.eerussianguy.blazemap.api.pipeline.MasterDataDispatcher;
 import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
 import com.eerussianguy.blazemap.api.pipeline.PipelineType;
+import com.eerussianguy.blazemap.engine.KeyMask;
 import com.eerussianguy.blazemap.engine.Pipeline;
 import com.eerussianguy.blazemap.engine.PipelineProfiler;
 import com.eerussianguy.blazemap.engine.storage.InternalStorage;
-import com.eerussianguy.blazemap.engine.UnsafeGenerics;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCache;
 import com.eerussianguy.blazemap.engine.cache.ChunkMDCacheView;
 import com.eerussianguy.blazemap.lib.async.AsyncChainRoot;
@@ -35,6 +35,8 @@ class ServerPipeline extends Pipeline {
     private static final PipelineProfiler SERVER_PIPELINE_PROFILER = new PipelineProfiler(
         COLLECTOR_TIME_PROFILER,
         COLLECTOR_LOAD_PROFILER,
+        SNAPSHOT_COLLECTOR_TIME_PROFILER,
+        SNAPSHOT_COLLECTOR_LOAD_PROFILER,
         TRANSFORMER_TIME_PROFILER,
         TRANSFORMER_LOAD_PROFILER,
         PROCESSOR_TIME_PROFILER,
@@ -58,8 +60,8 @@ class ServerPipeline extends Pipeline {
 
     @Override
     @SuppressWarnings("rawtypes")
-    protected void onPipelineOutput(ChunkPos pos, Set<Key<DataType>> diff, ChunkMDCacheView view, ChunkMDCache cache) {
-        dispatcher.dispatch(dimension, pos, cache.data(), UnsafeGenerics.mdKeys(diff), ServerEngine.getMDSource(), level.get().getChunk(pos.x, pos.z));
+    protected void onPipelineOutput(ChunkPos pos, long diff, ChunkMDCacheView view, ChunkMDCache cache) {
+        dispatcher.dispatch(dimension, pos, cache.data(), KeyMask.keys(diff, BlazeMapAPI.MASTER_DATA), ServerEngine.getMDSource(), level.get().getChunk(pos.x, pos.z));
     }
 
     private void dispatch(ResourceKey<Level> dimension, ChunkPos pos, List<MasterDatum> data, Set<BlazeRegistry.Key<DataType<MasterDatum>>> diff, String source, LevelChunk chunk) {
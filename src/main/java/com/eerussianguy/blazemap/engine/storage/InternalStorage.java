@@ -2,18 +2,23 @@ package com.eerussianguy.blazemap.engine.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.minecraft.resources.ResourceLocation;
 
+import com.eerussianguy.blazemap.BlazeMap;
 import com.eerussianguy.blazemap.api.maps.TileResolution;
+import com.eerussianguy.blazemap.api.util.RegionPos;
 
 public class InternalStorage extends PublicStorage {
     private static final String PATTERN_MIP = PATTERN + " [%d]";
     private static final String PATTERN_OLD = "%s+%s";
     private static final Pattern PATTERN_OLD_REGEX = Pattern.compile("^([a-z0-9_]+)\\+([a-z0-9_]+)$");
+    private static final ResourceLocation TILES = BlazeMap.resource("tiles");
 
     public InternalStorage(StorageType type, File dir, String child) {
         this(type, new File(dir, child));
@@ -24,11 +29,24 @@ public class InternalStorage extends PublicStorage {
         dir.mkdirs();
     }
 
-    public File getMipmapDir(ResourceLocation node, String file, TileResolution resolution) {
+    /** The archive with all of this region's layer tiles, shared with the regions around it. See TileArchive. */
+    public TileArchive getTileArchive(RegionPos region) {
+        return TileArchive.of(new File(getDir(TILES), TileArchive.getFileName(region)));
+    }
+
+    public List<TileArchive> getTileArchives() {
+        File[] files = getDir(TILES).listFiles((d, name) -> name.endsWith(TileArchive.EXTENSION));
+        if(files == null) return List.of();
+        return Arrays.stream(files).map(TileArchive::of).toList();
+    }
+
+    /**
+     * Where layer tiles used to live, one PNG per region, before they moved into archives.
+     * Only still around to migrate them, so unlike everything else this does not create the directory.
+     */
+    public File getLegacyMipmapDir(ResourceLocation node, TileResolution resolution) {
         Objects.requireNonNull(node);
-        File d = new File(dir, String.format(PATTERN_MIP, node.getNamespace(), node.getPath(), resolution.pixelWidth));
-        d.mkdirs();
-        return new File(d, file);
+        return new File(dir, String.format(PATTERN_MIP, node.getNamespace(), node.getPath(), resolution.pixelWidth));
     }
 
     /**
@@ -66,6 +66,16 @@ public class PublicStorage implements StorageAccess.LevelStorage, StorageAccess.
         move(getFile(node, source), getFile(node, destination));
     }
 
+    @Override
+    public void delete(ResourceLocation node) throws IOException {
+        Files.deleteIfExists(getFile(node).toPath());
+    }
+
+    @Override
+    public void delete(ResourceLocation node, String child) throws IOException {
+        Files.deleteIfExists(getFile(node, child).toPath());
+    }
+
     // LEVEL STORAGE ===================================================================================================
 
     // SERVER STORAGE ==================================================================================================
@@ -0,0 +1,391 @@
+package com.eerussianguy.blazemap.engine.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import net.minecraft.resources.ResourceLocation;
+
+import com.eerussianguy.blazemap.BlazeMap;
+import com.eerussianguy.blazemap.api.maps.TileResolution;
+import com.eerussianguy.blazemap.api.util.MinecraftStreams;
+import com.eerussianguy.blazemap.api.util.RegionPos;
+
+/**
+ * Every layer tile of a group of GROUP x GROUP regions, all layers and all resolutions, in a single file.
+ *
+ * Tiles get appended to the end of the file, followed by a fresh index of where every tile is. The start of the file
+ * has two header slots, written in turns, each pointing at an index and carrying a generation and a checksum. Whatever
+ * a write leaves behind if it gets cut short, the other slot still points at the previous index, which is still there.
+ * Replaced tiles and old indices are dead space, once that's more than half the file it gets compacted into a fresh
+ * copy that is then moved over the old one.
+ *
+ * There is only ever one instance per file, shared by whoever is holding on to it. Writes and compaction are
+ * synchronized, reads never take the lock: every commit publishes an immutable copy of the index, and readers look
+ * their tile up in whichever copy was there when they started. Appends never touch what an older index points at, so
+ * only compaction, which swaps the whole file, can pull the data out from under a reader. It bumps a counter before
+ * and after the swap, and readers that see it move go again.
+ * The file itself is only kept open for the duration of each operation.
+ */
+public class TileArchive {
+    public static final int GROUP = 8;
+    public static final String EXTENSION = ".tiles";
+
+    private static final int MAGIC = 0x424D5441; // BMTA
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 32, HEADER_SIZE = SLOT_SIZE * 2;
+    private static final long COMPACT_MIN_DEAD = 1024 * 1024;
+
+    private static final LoadingCache<File, TileArchive> ARCHIVES = CacheBuilder.newBuilder()
+        .weakValues()
+        .build(CacheLoader.from(TileArchive::new));
+
+    private final File file;
+    private final Map<Slot, Entry> entries = new HashMap<>();
+    private volatile Map<Slot, Entry> published; // what readers go by, null until loaded
+    private volatile int swaps; // odd while compaction is moving the new file in
+    private boolean loaded;
+    private long generation;
+    private long end; // where the next append goes
+    private long live; // bytes of tiles the index points at
+    private int indexLength;
+
+    private TileArchive(File file) {
+        this.file = file;
+    }
+
+    public static TileArchive of(File file) {
+        return ARCHIVES.getUnchecked(file.getAbsoluteFile());
+    }
+
+    public static String getFileName(RegionPos region) {
+        return String.format("[%d,%d]%s", Math.floorDiv(region.x, GROUP), Math.floorDiv(region.z, GROUP), EXTENSION);
+    }
+
+    /** @return the tile's bytes, or null if this archive doesn't have it. */
+    public byte[] read(ResourceLocation layer, TileResolution resolution, RegionPos region) throws IOException {
+        Slot slot = new Slot(layer, resolution, region);
+        while(true) {
+            int swap = swaps;
+            if((swap & 1) != 0) {
+                // Compaction holds the lock until the swap is done, so just wait it out
+                synchronized(this) {
+                    continue;
+                }
+            }
+
+            Entry entry = index().get(slot);
+            if(entry == null) return null;
+
+            byte[] data = new byte[entry.length];
+            try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(entry.offset);
+                raf.readFully(data);
+            }
+            catch(IOException e) {
+                if(swaps == swap) throw e;
+                continue;
+            }
+            if(swaps == swap) return data;
+        }
+    }
+
+    public void write(ResourceLocation layer, TileResolution resolution, RegionPos region, byte[] data) throws IOException {
+        write(List.of(new Tile(layer, resolution, region, data)));
+    }
+
+    /**
+     * Append all the tiles, then commit a single index for all of them. Either all of them make it in or none do.
+     * This is what saving should go through whenever there's more than one tile to write, every commit costs a full
+     * index and two syncs to disk.
+     */
+    public synchronized void write(List<Tile> tiles) throws IOException {
+        if(tiles.isEmpty()) return;
+        load();
+        file.getParentFile().mkdirs();
+
+        Map<Slot, Entry> replaced = new HashMap<>(); // what the index had before, null where it had nothing
+        long oldLive = live;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if(raf.length() < HEADER_SIZE) raf.setLength(HEADER_SIZE);
+            raf.seek(end);
+
+            try {
+                for(Tile tile : tiles) {
+                    raf.write(tile.data);
+
+                    Slot slot = new Slot(tile.layer, tile.resolution, tile.region);
+                    Entry old = entries.put(slot, new Entry(end, tile.data.length));
+                    if(!replaced.containsKey(slot)) replaced.put(slot, old);
+                    end += tile.data.length;
+                    live += tile.data.length - (old == null ? 0 : old.length);
+                }
+                commit(raf, entries);
+                published = Map.copyOf(entries);
+            }
+            catch(IOException e) {
+                // The header on disk still points at the old index, so go back to matching it
+                replaced.forEach((slot, old) -> {
+                    if(old == null) entries.remove(slot);
+                    else entries.put(slot, old);
+                });
+                live = oldLive;
+                throw e;
+            }
+        }
+
+        long dead = end - HEADER_SIZE - live - indexLength;
+        if(dead > COMPACT_MIN_DEAD && dead > live) {
+            compact();
+        }
+    }
+
+    /** All the regions this archive has a tile of the given layer and resolution for. */
+    public Set<RegionPos> regions(ResourceLocation layer, TileResolution resolution) throws IOException {
+        Set<RegionPos> regions = new HashSet<>();
+        for(Slot slot : index().keySet()) {
+            if(slot.layer.equals(layer) && slot.resolution == resolution) {
+                regions.add(slot.region);
+            }
+        }
+        return regions;
+    }
+
+
+    // =================================================================================================================
+    // Index and Headers
+    private Map<Slot, Entry> index() throws IOException {
+        Map<Slot, Entry> index = published;
+        if(index != null) return index;
+        synchronized(this) {
+            load();
+            return published;
+        }
+    }
+
+    private void load() throws IOException {
+        if(loaded) return;
+        entries.clear();
+        generation = live = indexLength = 0;
+        end = HEADER_SIZE;
+
+        if(file.exists()) {
+            try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                end = Math.max(HEADER_SIZE, raf.length());
+                if(raf.length() >= HEADER_SIZE) {
+                    readNewestIndex(raf);
+                }
+            }
+        }
+        published = Map.copyOf(entries);
+        loaded = true;
+    }
+
+    /** Try both header slots, newest first, and take the first one whose index checks out. */
+    private void readNewestIndex(RandomAccessFile raf) throws IOException {
+        ByteBuffer[] slots = new ByteBuffer[2];
+        for(int i = 0; i < 2; i++) {
+            byte[] slot = new byte[SLOT_SIZE];
+            raf.seek((long) i * SLOT_SIZE);
+            raf.readFully(slot);
+            slots[i] = ByteBuffer.wrap(slot);
+        }
+        if(slots[0].getLong(8) < slots[1].getLong(8)) {
+            ByteBuffer swap = slots[0];
+            slots[0] = slots[1];
+            slots[1] = swap;
+        }
+
+        for(ByteBuffer slot : slots) {
+            generation = Math.max(generation, slot.getLong(8)); // never reuse a generation, even a broken one
+            if(slot.getInt(0) != MAGIC || slot.getInt(4) != VERSION) continue;
+
+            long offset = slot.getLong(16);
+            int length = slot.getInt(24);
+            if(offset < HEADER_SIZE || length < 0 || offset + length > raf.length()) continue;
+
+            byte[] index = new byte[length];
+            raf.seek(offset);
+            raf.readFully(index);
+            if(checksum(slot.array(), index) != slot.getInt(28)) continue;
+
+            try {
+                decodeIndex(index);
+                indexLength = length;
+                return;
+            }
+            catch(IOException e) {
+                entries.clear();
+                live = 0;
+            }
+        }
+
+        if(generation > 0) {
+            BlazeMap.LOGGER.warn("Tile archive {} has no readable index, starting it over", file);
+        }
+    }
+
+    /** Append the index after everything else, make sure it's all on disk, and only then point the header at it. */
+    private void commit(RandomAccessFile raf, Map<Slot, Entry> entries) throws IOException {
+        byte[] index = encodeIndex(entries);
+        long offset = end;
+        raf.seek(offset);
+        raf.write(index);
+        raf.getChannel().force(false);
+
+        long next = generation + 1;
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putInt(MAGIC).putInt(VERSION).putLong(next).putLong(offset).putInt(index.length);
+        slot.putInt(checksum(slot.array(), index));
+        raf.seek((next & 1) * SLOT_SIZE);
+        raf.write(slot.array());
+        raf.getChannel().force(false);
+
+        generation = next;
+        end = offset + index.length;
+        indexLength = index.length;
+    }
+
+    private static int checksum(byte[] slot, byte[] index) {
+        CRC32 crc = new CRC32();
+        crc.update(slot, 0, SLOT_SIZE - 4);
+        crc.update(index);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeIndex(Map<Slot, Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(MinecraftStreams.Output stream = new MinecraftStreams.Output(bytes)) {
+            List<ResourceLocation> layers = new ArrayList<>();
+            Map<ResourceLocation, Integer> indices = new HashMap<>();
+            for(Slot slot : entries.keySet()) {
+                if(indices.putIfAbsent(slot.layer, layers.size()) == null) {
+                    layers.add(slot.layer);
+                }
+            }
+
+            stream.writeVarInt(layers.size());
+            for(ResourceLocation layer : layers) {
+                stream.writeResourceLocation(layer);
+            }
+
+            stream.writeVarInt(entries.size());
+            for(Map.Entry<Slot, Entry> entry : entries.entrySet()) {
+                Slot slot = entry.getKey();
+                stream.writeVarInt(indices.get(slot.layer));
+                stream.writeByte(slot.resolution.pixelWidth);
+                stream.writeRegionPos(slot.region);
+                stream.writeLong(entry.getValue().offset);
+                stream.writeVarInt(entry.getValue().length);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void decodeIndex(byte[] index) throws IOException {
+        try(MinecraftStreams.Input stream = new MinecraftStreams.Input(new ByteArrayInputStream(index))) {
+            int count = stream.readVarInt();
+            ResourceLocation[] layers = new ResourceLocation[count];
+            for(int i = 0; i < count; i++) {
+                layers[i] = stream.readResourceLocation();
+            }
+
+            int size = stream.readVarInt();
+            for(int i = 0; i < size; i++) {
+                int layer = stream.readVarInt();
+                int pixelWidth = stream.readUnsignedByte();
+                RegionPos region = stream.readRegionPos();
+                Entry entry = new Entry(stream.readLong(), stream.readVarInt());
+
+                if(layer >= count) throw new IOException("Tile archive layer index out of bounds: " + layer);
+                TileResolution resolution = byPixelWidth(pixelWidth);
+                if(resolution == null) continue; // a resolution this version doesn't know about, leave it to compaction
+
+                entries.put(new Slot(layers[layer], resolution, region), entry);
+                live += entry.length;
+            }
+        }
+    }
+
+    private static TileResolution byPixelWidth(int pixelWidth) {
+        for(TileResolution resolution : TileResolution.values()) {
+            if(resolution.pixelWidth == pixelWidth) return resolution;
+        }
+        return null;
+    }
+
+
+    // =================================================================================================================
+    // Compaction
+    /** Copy only what the index points at into a new file and swap it in. If anything goes wrong the old file stays. */
+    private void compact() {
+        File temp = new File(file.getPath() + ".compact");
+        Map<Slot, Entry> moved = new HashMap<>();
+        long oldGeneration = generation, oldEnd = end;
+        int oldIndexLength = indexLength;
+
+        try {
+            try(RandomAccessFile source = new RandomAccessFile(file, "r"); RandomAccessFile target = new RandomAccessFile(temp, "rw")) {
+                target.setLength(0); // a leftover from a failed attempt mustn't leave old headers behind
+                target.setLength(HEADER_SIZE);
+                long position = HEADER_SIZE;
+                for(Map.Entry<Slot, Entry> entry : entries.entrySet()) {
+                    Entry tile = entry.getValue();
+                    byte[] data = new byte[tile.length];
+                    source.seek(tile.offset);
+                    source.readFully(data);
+                    target.seek(position);
+                    target.write(data);
+                    moved.put(entry.getKey(), new Entry(position, tile.length));
+                    position += tile.length;
+                }
+
+                end = position;
+                commit(target, moved);
+            }
+
+            swaps++;
+            try {
+                try {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch(AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                entries.clear();
+                entries.putAll(moved);
+                published = Map.copyOf(entries);
+            }
+            finally {
+                swaps++;
+            }
+        }
+        catch(IOException e) {
+            BlazeMap.LOGGER.warn("Could not compact tile archive {}, will try again later", file, e);
+            generation = oldGeneration;
+            end = oldEnd;
+            indexLength = oldIndexLength;
+            temp.delete();
+        }
+    }
+
+
+    // =================================================================================================================
+    public record Tile(ResourceLocation layer, TileResolution resolution, RegionPos region, byte[] data) {}
+
+    private record Slot(ResourceLocation layer, TileResolution resolution, RegionPos region) {}
+
+    private record Entry(long offset, int length) {}
+}
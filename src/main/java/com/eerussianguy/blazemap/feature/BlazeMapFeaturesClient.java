@@ -82,6 +82,8 @@ public class BlazeMapFeaturesClient {
         BlazeMapAPI.MAPTYPES.register(new TopographyMapType());
         BlazeMapAPI.MAPTYPES.register(new NetherMapType());
 
+        MinecraftForge.EVENT_BUS.addListener(BlockStateColorTable::onJoinServer);
+
         mapping = true;
     }
 
@@ -1,6 +1,7 @@
 package com.eerussianguy.blazemap.feature.atlas;
 
 import com.eerussianguy.blazemap.engine.BlazeMapAsync;
+import com.eerussianguy.blazemap.lib.async.AsyncDataCruncher;
 
 public class AtlasExporter {
     private static AtlasTask task = null;
@@ -8,7 +9,7 @@ public class AtlasExporter {
     public static synchronized void exportAsync(AtlasTask task) {
         if(AtlasExporter.task == null) {
             AtlasExporter.task = task;
-            BlazeMapAsync.instance().clientChain.runOnDataThread(task::exportAsync);
+            BlazeMapAsync.instance().clientChain.runOnDataThread(task::exportAsync, AsyncDataCruncher.Lane.PERSISTENCE);
         } else {
             AtlasExporter.task.flash();
         }
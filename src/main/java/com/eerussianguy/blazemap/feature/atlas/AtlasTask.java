@@ -1,6 +1,7 @@
 package com.eerussianguy.blazemap.feature.atlas;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.util.*;
 
@@ -21,8 +22,10 @@ import com.eerussianguy.blazemap.api.maps.TileResolution;
 import com.eerussianguy.blazemap.api.util.RegionPos;
 import com.eerussianguy.blazemap.config.BlazeMapConfig;
 import com.eerussianguy.blazemap.engine.storage.InternalStorage;
+import com.eerussianguy.blazemap.engine.storage.TileArchive;
 import com.eerussianguy.blazemap.engine.client.ClientEngine;
 import com.eerussianguy.blazemap.engine.client.LayerRegionTile;
+import com.eerussianguy.blazemap.engine.client.SparseImage;
 import com.eerussianguy.blazemap.lib.Colors;
 import com.eerussianguy.blazemap.lib.Helpers;
 import com.mojang.blaze3d.platform.NativeImage;
@@ -104,8 +107,7 @@ public class AtlasTask {
             for(var layerKey : map.value().getLayers()) { // Loop layers
                 if(!layers.contains(layerKey)) continue;
 
-                File folder = storage.getMipmapDir(layerKey.location, ".", resolution);
-                pages.forEach(page -> renderAtlasPage(page, folder, atlas, origin));
+                pages.forEach(page -> renderAtlasPage(page, storage, layerKey, atlas, origin));
             }
 
             // Saving stage: flush atlas to disk
@@ -134,20 +136,22 @@ public class AtlasTask {
         }
     }
 
-    private void renderAtlasPage(AtlasPage page, File folder, NativeImage atlas, RegionPos origin) {
+    private void renderAtlasPage(AtlasPage page, InternalStorage storage, BlazeRegistry.Key<Layer> layer, NativeImage atlas, RegionPos origin) {
+        File legacyDir = storage.getLegacyMipmapDir(layer.location, resolution);
         page.forEach(region -> {
-            File file = new File(folder, LayerRegionTile.getImageName(region));
-            if(!file.exists()) return;
+            byte[] data = readArchivedTile(storage, layer, region);
+            File file = new File(legacyDir, LayerRegionTile.getImageName(region));
+            if(data == null && !file.exists()) return;
 
             // non-atomic op on volatile int is ok because only 1 thread writes to variable
             // Java guarantees r/w access to 32-bit variables is atomic, so other threads will read either old or new value with no need for synchronization and no risk of corruption.
             tilesCurrent++;
 
-            try(NativeImage tile = readTile(file)) {
+            try(SparseImage tile = data != null ? decodeTile(data, region) : readTile(file)) {
                 if(tile == null) return;
                 int width = tile.getWidth(), height = tile.getHeight();
                 if(width != resolution.regionWidth || height != resolution.regionWidth) {
-                    BlazeMap.LOGGER.error("Tile {} ({} x {}) mismatches expectation ({} x {}), skipping", file, width, height, resolution.regionWidth, resolution.regionWidth);
+                    BlazeMap.LOGGER.error("Tile {} {} ({} x {}) mismatches expectation ({} x {}), skipping", layer, region, width, height, resolution.regionWidth, resolution.regionWidth);
                     return;
                 }
 
@@ -159,7 +163,7 @@ public class AtlasTask {
                         int atlasPixelX = regionOffsetX + x;
                         int atlasPixelZ = regionOffsetZ + z;
                         int atlasPixel = atlas.getPixelRGBA(atlasPixelX, atlasPixelZ);
-                        int tilePixel = tile.getPixelRGBA(x, z);
+                        int tilePixel = tile.getPixel(x, z);
                         atlas.setPixelRGBA(atlasPixelX, atlasPixelZ, Colors.layerBlend(atlasPixel, tilePixel));
                     }
                 }
@@ -167,16 +171,36 @@ public class AtlasTask {
         });
     }
 
+    private byte[] readArchivedTile(InternalStorage storage, BlazeRegistry.Key<Layer> layer, RegionPos region) {
+        try {
+            return storage.getTileArchive(region).read(layer.location, resolution, region);
+        }
+        catch(IOException e) {
+            BlazeMap.LOGGER.error("Failed to read tile {} {} from its archive, skipping", layer, region, e);
+            return null;
+        }
+    }
+
+    private static SparseImage decodeTile(byte[] data, RegionPos region) {
+        try {
+            return SparseImage.decode(data, null);
+        }
+        catch(IOException e) {
+            BlazeMap.LOGGER.error("Failed to decode tile {}, skipping", region, e);
+            return null;
+        }
+    }
+
     /**
-     * Tries to open a tile.
+     * Tries to open a tile that wasn't migrated into its archive yet.
      * If it fails, waits 250ms and tries again.
      * The 5th failed attempt will abort and throw an IOException.
      */
-    private static NativeImage readTile(File file) {
+    private static SparseImage readTile(File file) {
         int attempt = 1;
         while(true) {
-            try {
-                return NativeImage.read(Files.newInputStream(file.toPath()));
+            try(NativeImage image = NativeImage.read(Files.newInputStream(file.toPath()))) {
+                return SparseImage.of(image);
             }
             catch(Exception e) {
                 if(attempt < 5) { // we start counting at 1, so 5th attempt throws
@@ -198,25 +222,40 @@ public class AtlasTask {
         var layers = map.value().getLayers();
 
         // Determine which regions of the map will need to be rendered
+        // Archives know what they hold, so that's one listing for the whole dimension instead of one per layer
+        List<TileArchive> archives = storage.getTileArchives();
         for(var layer : layers) {
             if(!layers.contains(layer)) continue;
-            File folder = storage.getMipmapDir(layer.location, ".", resolution);
-            File[] images = folder.listFiles();
-            if(images == null) continue;
-
-            for(var image : images) {
-                String filename = image.getName();
-                if(!filename.endsWith(".png")) continue; // skip buffers
-                String[] coords = filename.replaceAll("(^\\[)|(]\\.png$)", "").split(",");
-                if(coords.length != 2) continue;
-                int x = Integer.parseInt(coords[0]);
-                int z = Integer.parseInt(coords[1]);
-                regions.add(new RegionPos(x, z));
-
-                // non-atomic op on volatile int is ok because only 1 thread writes to variable
-                // Java guarantees r/w access to 32-bit variables is atomic, so other threads will read either old or new value with no need for synchronization and no risk of corruption.
-                tilesTotal++;
+            Set<RegionPos> tiles = new HashSet<>();
+
+            for(var archive : archives) {
+                try {
+                    tiles.addAll(archive.regions(layer.location, resolution));
+                }
+                catch(IOException e) {
+                    BlazeMap.LOGGER.error("Failed to read tile archive index, skipping", e);
+                }
+            }
+
+            // Tiles in the old format that haven't been migrated yet
+            File[] images = storage.getLegacyMipmapDir(layer.location, resolution).listFiles();
+            if(images != null) {
+                for(var image : images) {
+                    String filename = image.getName();
+                    if(!filename.endsWith(".png")) continue; // skip buffers
+                    String[] coords = filename.replaceAll("(^\\[)|(]\\.png$)", "").split(",");
+                    if(coords.length != 2) continue;
+                    int x = Integer.parseInt(coords[0]);
+                    int z = Integer.parseInt(coords[1]);
+                    tiles.add(new RegionPos(x, z));
+                }
             }
+
+            regions.addAll(tiles);
+
+            // non-atomic op on volatile int is ok because only 1 thread writes to variable
+            // Java guarantees r/w access to 32-bit variables is atomic, so other threads will read either old or new value with no need for synchronization and no risk of corruption.
+            tilesTotal += tiles.size();
         }
 
         paginateRegions(regions);
@@ -1,45 +1,33 @@
 package com.eerussianguy.blazemap.feature.mapping;
 
-import java.util.function.IntFunction;
-
-import java.util.Queue;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.color.block.BlockColors;
-import net.minecraft.client.renderer.block.BlockModelShaper;
-import net.minecraft.client.renderer.block.model.BakedQuad;
-import net.minecraft.client.resources.model.BakedModel;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.BlockPos.MutableBlockPos;
-import net.minecraft.core.Direction;
-import net.minecraft.tags.BlockTags;
+import net.minecraft.world.level.BlockAndTintGetter;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.KelpBlock;
 import net.minecraft.world.level.block.KelpPlantBlock;
 import net.minecraft.world.level.block.SeagrassBlock;
 import net.minecraft.world.level.block.TallSeagrassBlock;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.levelgen.Heightmap;
 import net.minecraft.world.level.material.MaterialColor;
 
-import net.minecraftforge.client.model.data.EmptyModelData;
-
 import com.eerussianguy.blazemap.api.BlazeMapReferences;
 import com.eerussianguy.blazemap.api.builtin.BlockColorMD;
 import com.eerussianguy.blazemap.api.pipeline.ClientOnlyCollector;
+import com.eerussianguy.blazemap.api.pipeline.ColumnProfile;
+import com.eerussianguy.blazemap.api.pipeline.LevelSnapshot;
 import com.eerussianguy.blazemap.lib.Colors;
 import com.eerussianguy.blazemap.lib.Transparency;
 import com.eerussianguy.blazemap.lib.Transparency.TransparencyState;
 import com.eerussianguy.blazemap.lib.Transparency.BlockComposition;
-import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
 
 public class BlockColorCollector extends ClientOnlyCollector<BlockColorMD> {
-    private static final int TINTED_FLAG = 0xFA000000;
-    private static final Object2IntArrayMap<BlockState> colors = new Object2IntArrayMap<>();
-    protected static final HashMap<Integer, Float> darknessPointCache = new HashMap<Integer, Float>();
+    static final int TINTED_FLAG = 0xFA000000;
+    private static final ThreadLocal<ColumnScratch> SCRATCH = ThreadLocal.withInitial(ColumnScratch::new);
 
     public BlockColorCollector() {
         super(
@@ -50,17 +38,27 @@ public class BlockColorCollector extends ClientOnlyCollector<BlockColorMD> {
 
     @Override
     public BlockColorMD collect(Level level, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, new ColumnProfile().reset(level, minX, minZ), minX, minZ);
+    }
+
+    @Override
+    public boolean isSnapshotSafe() {
+        return true;
+    }
+
+    @Override
+    public BlockColorMD collect(LevelSnapshot level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, columns, minX, minZ);
+    }
+
+    private BlockColorMD collect(BlockAndTintGetter level, ColumnProfile columns, int minX, int minZ) {
         final int[][] colors = new int[16][16];
         final BlockColors blockColors = Minecraft.getInstance().getBlockColors();
-        final MutableBlockPos blockPos = new MutableBlockPos();
+        final ColumnScratch scratch = SCRATCH.get();
 
-        // Reusable arrays
-        float[] arr1 = new float[4];
-        float[] arr2 = new float[4];
-        
         for(int z = 0; z < 16; z++) {
             for(int x = 0; x < 16; x++) {
-                int color = getColorAtMapPixel(level, blockColors, blockPos, minX + x, minZ + z, arr1, arr2);
+                int color = getColorAtMapPixel(level, blockColors, columns, scratch, x, z, minX + x, minZ + z);
                 
                 if(color > 0) {
                     colors[z][x] = color;
@@ -72,61 +70,55 @@ public class BlockColorCollector extends ClientOnlyCollector<BlockColorMD> {
     }
 
 
-    protected int getColorAtMapPixel(Level level, BlockColors blockColors, MutableBlockPos blockPos, int x, int z, float[] arr1, float[] arr2) {
+    protected int getColorAtMapPixel(BlockAndTintGetter level, BlockColors blockColors, ColumnProfile columns, ColumnScratch scratch, int x, int z, int blockX, int blockZ) {
+        final MutableBlockPos blockPos = scratch.pos;
+        final int stackSize = columns.getStackSize(x, z);
         int color = 0;
-        float[] argb = arr1;
-        // Extra arrays to reuse the same memory addresses for GC's sake
-        float[] spareArray = arr2;
-        float[] tmpArray;
-
-        Queue<BlockColor> transparentBlocks = new LinkedList<BlockColor>();
+        int y = 0;
 
-        for (int y = level.getHeight(Heightmap.Types.MOTION_BLOCKING, x, z);
-                y > level.getMinBuildHeight();
-                y--) {
-            blockPos.set(x, y, z);
-            final BlockState state = level.getBlockState(blockPos);
+        scratch.clear();
 
-            if (state.isAir()) {
-                continue;
-            }
+        // The column profile already walked down to the first opaque block, skipping air
+        for (int i = 0; i < stackSize && color == 0; i++) {
+            y = columns.getStackY(x, z, i);
+            color = scanBlock(columns.getStackState(x, z, i), columns.getStackComposition(x, z, i), level, blockPos.set(blockX, y, blockZ), blockColors, scratch);
+        }
 
-            BlockColor processedBlock = new BlockColor(state, level, blockPos, blockColors, transparentBlocks.isEmpty(), argb, spareArray);
+        // If that opaque block had no usable colour, keep looking below it
+        if (color == 0 && stackSize > 0 && columns.getStackComposition(x, z, stackSize - 1).getTransparencyState() == TransparencyState.OPAQUE) {
+            for (y--; y > level.getMinBuildHeight() && color == 0; y--) {
+                blockPos.set(blockX, y, blockZ);
+                final BlockState state = level.getBlockState(blockPos);
 
-            // TODO: See if this inequality is the cause of the transparency bug
-            if (processedBlock.totalColor <= 0) {
-                continue;
-            }
+                if (state.isAir()) {
+                    continue;
+                }
 
-            if (processedBlock.getTransparencyState() != TransparencyState.OPAQUE) {
-                transparentBlocks.add(processedBlock);
-                continue;
+                color = scanBlock(state, Transparency.getBlockComposition(state, level, blockPos), level, blockPos, blockColors, scratch);
             }
-
-            // Hasn't met any of the conditions to continue checking the blocks under it, so finalise and break
-            color = processedBlock.totalColor;
-            break;
         }
 
-        if (transparentBlocks.size() > 0) {
+        if (scratch.size > 0) {
             // TODO: Forgot to change depth while iterating through block column.
             // Will require re-tuning colours after fixing.
-            int depth = transparentBlocks.size();
-            argb = transparentBlocks.poll().argb(argb);
+            int depth = scratch.size;
+            float[] argb = scratch.argb(0, scratch.arr1);
+            // Extra array to reuse the same memory addresses for GC's sake
+            float[] spareArray = scratch.arr2;
+            float[] tmpArray;
 
             // Top layer must be minimum this colour as it should be the easiest to see.
             // Represents extra sunlight reflecting off the surface
             argb[0] = Math.max(0.5f, argb[0]);
 
-            while (transparentBlocks.size() > 0) {
-                BlockColor transparentBlock = transparentBlocks.poll();
-                tmpArray = Colors.filterARGB(argb, transparentBlock.argb(spareArray), depth);
+            for (int i = 1; i < depth; i++) {
+                tmpArray = Colors.filterARGB(argb, scratch.argb(i, spareArray), depth);
                 spareArray = argb;
                 argb = tmpArray;
             }
 
             // The shade on the solid block at the bottom of the ocean
-            color = Colors.recomposeRGBA(Colors.filterARGB(new float[] {0,0,0,0}, Colors.decomposeRGBA(color, spareArray), depth));
+            color = Colors.recomposeRGBA(Colors.filterARGB(ColumnScratch.CLEAR, Colors.decomposeRGBA(color, spareArray), depth));
 
             int finalColor = Colors.recomposeRGBA(argb);
             color = Colors.interpolate(
@@ -139,6 +131,70 @@ public class BlockColorCollector extends ClientOnlyCollector<BlockColorMD> {
         return color;
     }
 
+    /** Feed one block into the column. Returns its colour if it finishes the column, 0 to keep going down. */
+    protected static int scanBlock(BlockState state, BlockComposition composition, BlockAndTintGetter level, BlockPos pos, BlockColors blockColors, ColumnScratch scratch) {
+        int blockColor = getBlockColor(state, composition, level, pos, blockColors, scratch.size == 0, scratch);
+
+        // TODO: See if this inequality is the cause of the transparency bug
+        if (blockColor <= 0) {
+            return 0;
+        }
+
+        if (composition.getTransparencyState() != TransparencyState.OPAQUE) {
+            scratch.push(blockColor, composition.totalTransparencyLevel.opacity);
+            return 0;
+        }
+
+        // Hasn't met any of the conditions to continue checking the blocks under it, so finalise
+        return blockColor;
+    }
+
+    /**
+     * Get and mix the colours of a single block based on the appropriate mixing scheme.
+     * Only touches the scratch's working arrays, never the transparent stack.
+     */
+    protected static int getBlockColor(BlockState state, BlockComposition composition, BlockAndTintGetter level, BlockPos pos, BlockColors blockColors, boolean isSurfaceBlock, ColumnScratch scratch) {
+        switch (composition.compositionState) {
+            case BLOCK:
+            case NON_FULL_BLOCK:
+                // Normal block conditions
+                return getColorAtPos(level, blockColors, state, pos);
+
+            case FLUID:
+                // Just a fluid
+                return getColorAtPos(level, blockColors, state, pos);
+
+            case FLUIDLOGGED_BLOCK:
+            case FLUIDLOGGED_NON_FULL:
+                // Fluidlogged block
+                int blockColor = getColorAtPos(level, blockColors, state, pos);
+
+                BlockState equivalentFluidBlock = state.getFluidState().createLegacyBlock();
+                int fluidColor = getColorAtPos(level, blockColors, equivalentFluidBlock, pos);
+
+                float[] blockArgb = argb(blockColor, composition.blockTransparencyLevel.opacity, scratch.arr1);
+                float[] fluidArgb = argb(fluidColor, composition.fluidTransparencyLevel.opacity, scratch.arr2);
+
+                if (isSurfaceBlock) {
+                    // Baseline opacity so thin fluids can still be seen
+                    // Represents extra sunlight reflecting off the surface
+                    fluidArgb[0] = Math.max(0.5f, fluidArgb[0]);
+                }
+
+                float[] totalArgb = Colors.filterARGB(fluidArgb, blockArgb, 0);
+                return Colors.recomposeRGBA(totalArgb) & 0x00FFFFFF;
+
+            default:
+                // Zero opacity
+                return 0x00000000;
+        }
+    }
+
+    protected static float[] argb(int color, float opacity, float[] arr) {
+        float[] argb = Colors.decomposeRGBA(color, arr);
+        argb[0] = opacity;
+        return argb;
+    }
 
     /**
      * These blocks don't return accurate colours using the other methods,
@@ -156,16 +212,10 @@ public class BlockColorCollector extends ClientOnlyCollector<BlockColorMD> {
         return 0;
     }
 
-    protected static int getColorAtPos(Level level, BlockColors blockColors, BlockState state, BlockPos blockPos) {
+    protected static int getColorAtPos(BlockAndTintGetter level, BlockColors blockColors, BlockState state, BlockPos blockPos) {
         // int color = handleSpecialCases(state);
-        int color;
-
         // Get color from texture
-        if(state.is(BlockTags.FLOWERS)) {
-            color = getBestTexturePixel(level, state, null, BlockColorCollector::avoidGreen);
-        } else {
-            color = getAverageTextureColor(level, state);
-        }
+        int color = BlockStateColorTable.INSTANCE.get(state);
 
         if((color & Colors.ALPHA) == TINTED_FLAG) {
             color = Colors.multiplyRGB(color, blockColors.getColor(state, level, blockPos, 0));
@@ -187,170 +237,37 @@ public class BlockColorCollector extends ClientOnlyCollector<BlockColorMD> {
         return color;
     }
 
-    private static int getAverageTextureColor(Level level, BlockState state) {
-        return colors.computeIfAbsent(state, $ -> {
-            var mc = Minecraft.getInstance();
-            BakedModel model = mc.getModelManager().getModel(BlockModelShaper.stateToModelLocation(state));
-            List<BakedQuad> quads = model.getQuads(state, Direction.UP, level.getRandom(), EmptyModelData.INSTANCE);
-
-            if (quads.size() == 0) {
-                // Cross-shaped blocks (and others without a top surface) don't respond to the direction right,
-                // so grabbing all faces to average out instead
-                quads = model.getQuads(state, null, level.getRandom(), EmptyModelData.INSTANCE);
-            }
-
-            int flag = 0;
-            int r = 0, g = 0, b = 0, total = 0;
-
-            for(BakedQuad quad : quads) {
-                if(quad.isTinted()) {
-                    flag = TINTED_FLAG;
-                }
-
-                var texture = quad.getSprite();
-                int w = texture.getWidth(), h = texture.getHeight();
-
-                for(int x = 0; x < w; x++) {
-                    for(int y = 0; y < h; y++) {
-                        var pixel = Colors.decomposeRGBA(texture.getPixelRGBA(0, x, y));
-                        float alpha = pixel[0];
-                        if(alpha < 0.05F) continue;
-                        r += (255 * pixel[3] * alpha);
-                        g += (255 * pixel[2] * alpha);
-                        b += (255 * pixel[1] * alpha);
-                        total += alpha;
-                    }
-                }
-            }
-
-            // prevent dumb math and division by zero early
-            if(total == 0) return 0;
-
-            r /= total;
-            g /= total;
-            b /= total;
-
-            return flag | (r << 16) | (g << 8) | b;
-        });
-    }
-
-    private static int getBestTexturePixel(Level level, BlockState state, Direction direction, IntFunction<Integer> fitness) {
-        return colors.computeIfAbsent(state, $ -> {
-            var mc = Minecraft.getInstance();
-            BakedModel model = mc.getModelManager().getModel(BlockModelShaper.stateToModelLocation(state));
-            List<BakedQuad> quads = model.getQuads(state, direction, level.getRandom(), EmptyModelData.INSTANCE);
-
-            int best = Integer.MIN_VALUE;
-            int pixel = 0;
-
-            for(BakedQuad quad : quads) {
-                var texture = quad.getSprite();
-                int w = texture.getWidth();
-                int h = texture.getHeight();
-
-                for(int x = 0; x < w; x++) {
-                    for(int y = 0; y < h; y++) {
-                        int color = Colors.abgr(texture.getPixelRGBA(0, x, y));
-                        int score = fitness.apply(color);
-                        if(score > best) {
-                            best = score;
-                            pixel = color;
-                        }
-                    }
-                }
-            }
-
-            return pixel & 0x00FFFFFF;
-        });
-    }
-
-    private static int avoidGreen(int pixel) {
-        var channels = Colors.decomposeRGBA(pixel);
-        float a = channels[0];
-        int r = (int) (channels[1] * 1000);
-        int g = (int) (channels[2] * 1000);
-        int b = (int) (channels[3] * 1000);
-        return (int) (a * (r + 1000-g + b));
-    }
-
-
-    public static class BlockColor {
-        private final BlockComposition blockComposition;
-        protected final int totalColor;
-
-        private BlockColor(BlockState state, Level level, BlockPos pos, BlockColors blockColors, boolean isSurfaceBlock) {
-            this(state, level, pos, blockColors, isSurfaceBlock, null, null);
+    /**
+     * Per-thread working memory for scanning columns, so collecting a chunk allocates nothing but its output.
+     * The transparent stack is kept as two parallel primitive arrays, top block first.
+     */
+    protected static final class ColumnScratch {
+        private static final float[] CLEAR = new float[] {0, 0, 0, 0}; // Only ever used as filter top, never written
+
+        private final MutableBlockPos pos = new MutableBlockPos();
+        private final float[] arr1 = new float[4];
+        private final float[] arr2 = new float[4];
+        private int[] colors = new int[16];
+        private float[] opacities = new float[16];
+        private int size;
+
+        private void clear() {
+            size = 0;
         }
 
-        private BlockColor(BlockState state, Level level, BlockPos pos, BlockColors blockColors, boolean isSurfaceBlock, float[] arr1, float[] arr2) {
-            this.blockComposition = Transparency.getBlockComposition(state, level, pos);
-
-            // Check if we have reusable arrays and create new ones if not
-            if (arr1 == null || arr2 == null) {
-                arr1 = new float[4];
-                arr2 = new float[4];
+        private void push(int color, float opacity) {
+            if(size == colors.length) {
+                // Only ever happens on unusually deep columns, after that the larger arrays stay around
+                colors = Arrays.copyOf(colors, size * 2);
+                opacities = Arrays.copyOf(opacities, size * 2);
             }
-
-            // Get and mix the colours based on the appropriate mixing scheme
-            switch (blockComposition.compositionState) {
-                case BLOCK:
-                case NON_FULL_BLOCK:
-                    // Normal block conditions
-                    this.totalColor = getColorAtPos(level, blockColors, state, pos);
-                    break;
-
-                case FLUID:
-                    // Just a fluid
-                    this.totalColor = getColorAtPos(level, blockColors, state, pos);
-                    break;
-
-                case FLUIDLOGGED_BLOCK:
-                case FLUIDLOGGED_NON_FULL:
-                    // Fluidlogged block
-                    int blockColor = getColorAtPos(level, blockColors, state, pos);
-
-                    BlockState equivalentFluidBlock = state.getFluidState().createLegacyBlock();
-                    int fluidColor = getColorAtPos(level, blockColors, equivalentFluidBlock, pos);
-
-                    float[] blockArgb = argb(blockColor, blockComposition.blockTransparencyLevel.opacity, arr1);
-                    float[] fluidArgb = argb(fluidColor, blockComposition.fluidTransparencyLevel.opacity, arr2);
-
-                    if (isSurfaceBlock) {
-                        // Baseline opacity so thin fluids can still be seen
-                        // Represents extra sunlight reflecting off the surface
-                        fluidArgb[0] = Math.max(0.5f, fluidArgb[0]);
-                    }
-
-                    float[] totalArgb = Colors.filterARGB(fluidArgb, blockArgb, 0);
-                    this.totalColor = Colors.recomposeRGBA(totalArgb) & 0x00FFFFFF;
-                    break;
-
-                default:
-                    // Zero opacity
-                    this.totalColor = 0x00000000;
-            }
-        }
-
-        public float[] argb() {
-            return argb(totalColor, blockComposition.totalTransparencyLevel.opacity);
-        }
-        public float[] argb(float[] arr) {
-            return argb(totalColor, blockComposition.totalTransparencyLevel.opacity, arr);
-        }
-
-        protected float[] argb(int color, float opacity) {
-            float[] argb = Colors.decomposeRGBA(color);
-            argb[0] = opacity;
-            return argb;
-        }
-        protected float[] argb(int color, float opacity, float[] arr) {
-            float[] argb = Colors.decomposeRGBA(color, arr);
-            argb[0] = opacity;
-            return argb;
+            colors[size] = color;
+            opacities[size] = opacity;
+            size++;
         }
 
-        public TransparencyState getTransparencyState() {
-            return blockComposition.getTransparencyState();
+        private float[] argb(int index, float[] arr) {
+            return BlockColorCollector.argb(colors[index], opacities[index], arr);
         }
     }
 }
@@ -39,6 +39,16 @@ public class BlockColorSerializer implements DataType<BlockColorMD> {
         return new BlockColorMD(colors);
     }
 
+    @Override
+    public void serializeCompact(MinecraftStreams.Output stream, BlockColorMD datum) throws IOException {
+        GridEncoding.writePalette(stream, datum.colors);
+    }
+
+    @Override
+    public BlockColorMD deserializeCompact(MinecraftStreams.Input stream) throws IOException {
+        return new BlockColorMD(GridEncoding.readPalette(stream));
+    }
+
     @Override
     public MDInspectionController<BlockColorMD> getInspectionController() {
         return new MDInspectionController<BlockColorMD>() {
@@ -0,0 +1,187 @@
+package com.eerussianguy.blazemap.feature.mapping;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.block.BlockModelShaper;
+import net.minecraft.client.renderer.block.model.BakedQuad;
+import net.minecraft.client.resources.model.BakedModel;
+import net.minecraft.core.Direction;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.server.packs.resources.ResourceManagerReloadListener;
+import net.minecraft.tags.BlockTags;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraftforge.client.event.ClientPlayerNetworkEvent;
+import net.minecraftforge.client.model.data.EmptyModelData;
+
+import com.eerussianguy.blazemap.BlazeMap;
+import com.eerussianguy.blazemap.engine.BlazeMapAsync;
+import com.eerussianguy.blazemap.lib.Colors;
+
+/**
+ * Dense lookup table holding the texture color of every BlockState, indexed by the state's id in
+ * Block.BLOCK_STATE_REGISTRY, so that looking up a color in the collector is a single array read.
+ *
+ * The table is thrown away and refilled in the background every time resources reload (new textures) and every time
+ * we join a server (Forge may remap block state ids). States not yet filled in are computed on the spot by whoever
+ * asks first and written straight into the table. Both writers compute the exact same value for the same state,
+ * so the unsynchronized writes are harmless and lookups never need to take a lock.
+ */
+public class BlockStateColorTable implements ResourceManagerReloadListener {
+    public static final BlockStateColorTable INSTANCE = new BlockStateColorTable();
+
+    /** Texture colors have either no alpha or TINTED_FLAG as alpha, so this value can never be a real color. */
+    private static final int UNKNOWN = 0xFFFFFFFF;
+
+    /** Fixed seed so random model variants always resolve the same, no matter which thread computes them. */
+    private static final long SEED = 42L;
+
+    private volatile int[] table = new int[0];
+
+    private BlockStateColorTable() {}
+
+    public int get(BlockState state) {
+        int[] table = this.table;
+        int id = Block.BLOCK_STATE_REGISTRY.getId(state);
+        if(id < 0 || id >= table.length) return compute(state);
+
+        int color = table[id];
+        if(color == UNKNOWN) {
+            color = compute(state);
+            table[id] = color;
+        }
+        return color;
+    }
+
+    @Override
+    public void onResourceManagerReload(ResourceManager manager) {
+        rebuild();
+    }
+
+    public static void onJoinServer(ClientPlayerNetworkEvent.LoggedInEvent event) {
+        INSTANCE.rebuild();
+    }
+
+    /** Publish a new empty table and start filling it in the background. Lookups fall back to computing meanwhile. */
+    public void rebuild() {
+        int[] table = new int[Block.BLOCK_STATE_REGISTRY.size()];
+        Arrays.fill(table, UNKNOWN);
+        this.table = table;
+        BlazeMapAsync.instance().cruncher.submit(() -> fill(table));
+    }
+
+    private void fill(int[] table) {
+        try {
+            for(BlockState state : Block.BLOCK_STATE_REGISTRY) {
+                if(this.table != table) return; // A newer rebuild superseded this one, let it do the work.
+
+                int id = Block.BLOCK_STATE_REGISTRY.getId(state);
+                if(id < 0 || id >= table.length) continue;
+                if(table[id] == UNKNOWN) {
+                    table[id] = compute(state);
+                }
+            }
+        }
+        catch(Exception e) {
+            // Most likely the textures got reloaded under our feet. Whatever is missing will be computed on demand.
+            BlazeMap.LOGGER.warn("Aborted filling BlockState color table", e);
+        }
+    }
+
+    private static int compute(BlockState state) {
+        Random random = new Random(SEED);
+        if(state.is(BlockTags.FLOWERS)) {
+            return getBestTexturePixel(state, null, random, BlockStateColorTable::avoidGreen);
+        }
+        else {
+            return getAverageTextureColor(state, random);
+        }
+    }
+
+    private static int getAverageTextureColor(BlockState state, Random random) {
+        var mc = Minecraft.getInstance();
+        BakedModel model = mc.getModelManager().getModel(BlockModelShaper.stateToModelLocation(state));
+        List<BakedQuad> quads = model.getQuads(state, Direction.UP, random, EmptyModelData.INSTANCE);
+
+        if (quads.size() == 0) {
+            // Cross-shaped blocks (and others without a top surface) don't respond to the direction right,
+            // so grabbing all faces to average out instead
+            quads = model.getQuads(state, null, random, EmptyModelData.INSTANCE);
+        }
+
+        int flag = 0;
+        int r = 0, g = 0, b = 0, total = 0;
+        float[] pixel = new float[4];
+
+        for(BakedQuad quad : quads) {
+            if(quad.isTinted()) {
+                flag = BlockColorCollector.TINTED_FLAG;
+            }
+
+            var texture = quad.getSprite();
+            int w = texture.getWidth(), h = texture.getHeight();
+
+            for(int x = 0; x < w; x++) {
+                for(int y = 0; y < h; y++) {
+                    Colors.decomposeRGBA(texture.getPixelRGBA(0, x, y), pixel);
+                    float alpha = pixel[0];
+                    if(alpha < 0.05F) continue;
+                    r += (255 * pixel[3] * alpha);
+                    g += (255 * pixel[2] * alpha);
+                    b += (255 * pixel[1] * alpha);
+                    total += alpha;
+                }
+            }
+        }
+
+        // prevent dumb math and division by zero early
+        if(total == 0) return 0;
+
+        r /= total;
+        g /= total;
+        b /= total;
+
+        return flag | (r << 16) | (g << 8) | b;
+    }
+
+    private static int getBestTexturePixel(BlockState state, Direction direction, Random random, IntFunction<Integer> fitness) {
+        var mc = Minecraft.getInstance();
+        BakedModel model = mc.getModelManager().getModel(BlockModelShaper.stateToModelLocation(state));
+        List<BakedQuad> quads = model.getQuads(state, direction, random, EmptyModelData.INSTANCE);
+
+        int best = Integer.MIN_VALUE;
+        int pixel = 0;
+
+        for(BakedQuad quad : quads) {
+            var texture = quad.getSprite();
+            int w = texture.getWidth();
+            int h = texture.getHeight();
+
+            for(int x = 0; x < w; x++) {
+                for(int y = 0; y < h; y++) {
+                    int color = Colors.abgr(texture.getPixelRGBA(0, x, y));
+                    int score = fitness.apply(color);
+                    if(score > best) {
+                        best = score;
+                        pixel = color;
+                    }
+                }
+            }
+        }
+
+        return pixel & 0x00FFFFFF;
+    }
+
+    private static int avoidGreen(int pixel) {
+        var channels = Colors.decomposeRGBA(pixel);
+        float a = channels[0];
+        int r = (int) (channels[1] * 1000);
+        int g = (int) (channels[2] * 1000);
+        int b = (int) (channels[3] * 1000);
+        return (int) (a * (r + 1000-g + b));
+    }
+}
@@ -0,0 +1,118 @@
+package com.eerussianguy.blazemap.feature.mapping;
+
+import java.io.IOException;
+
+import com.eerussianguy.blazemap.api.util.MinecraftStreams;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Compact encodings for the 16x16 grids most MasterData is made of, used when persisting to disk.
+ */
+class GridEncoding {
+    private static final int SIZE = 16;
+
+    /**
+     * Each cell as the zig-zag difference to its left neighbour (or the one above, for the first column).
+     * Terrain is mostly smooth, so most cells end up as a single byte.
+     */
+    static void writeDeltas(MinecraftStreams.Output stream, int[][] grid) throws IOException {
+        for(int z = 0; z < SIZE; z++) {
+            for(int x = 0; x < SIZE; x++) {
+                stream.writeSignedVarInt(grid[z][x] - predict(grid, x, z));
+            }
+        }
+    }
+
+    static int[][] readDeltas(MinecraftStreams.Input stream) throws IOException {
+        int[][] grid = new int[SIZE][SIZE];
+        for(int z = 0; z < SIZE; z++) {
+            for(int x = 0; x < SIZE; x++) {
+                grid[z][x] = predict(grid, x, z) + stream.readSignedVarInt();
+            }
+        }
+        return grid;
+    }
+
+    private static int predict(int[][] grid, int x, int z) {
+        if(x > 0) return grid[z][x - 1];
+        if(z > 0) return grid[z - 1][0];
+        return 0;
+    }
+
+    /**
+     * The distinct values once, then every cell as an index into them, packed into as few bits as the palette needs.
+     * A chunk rarely has more than a handful of distinct colors, and a uniform one costs no bits per cell at all.
+     */
+    static void writePalette(MinecraftStreams.Output stream, int[][] grid) throws IOException {
+        Int2IntOpenHashMap indices = new Int2IntOpenHashMap();
+        IntArrayList palette = new IntArrayList();
+        for(int z = 0; z < SIZE; z++) {
+            for(int x = 0; x < SIZE; x++) {
+                if(!indices.containsKey(grid[z][x])) {
+                    indices.put(grid[z][x], palette.size());
+                    palette.add(grid[z][x]);
+                }
+            }
+        }
+
+        stream.writeVarInt(palette.size());
+        for(int i = 0; i < palette.size(); i++) {
+            stream.writeInt(palette.getInt(i));
+        }
+
+        int bits = bitsFor(palette.size());
+        if(bits == 0) return;
+
+        int buffer = 0, filled = 0;
+        for(int z = 0; z < SIZE; z++) {
+            for(int x = 0; x < SIZE; x++) {
+                buffer = (buffer << bits) | indices.get(grid[z][x]);
+                filled += bits;
+                while(filled >= 8) {
+                    filled -= 8;
+                    stream.writeByte(buffer >>> filled);
+                }
+                buffer &= (1 << filled) - 1;
+            }
+        }
+        if(filled > 0) stream.writeByte(buffer << (8 - filled));
+    }
+
+    static int[][] readPalette(MinecraftStreams.Input stream) throws IOException {
+        int size = stream.readVarInt();
+        if(size < 1 || size > SIZE * SIZE) throw new IOException("Invalid palette size: " + size);
+
+        int[] palette = new int[size];
+        for(int i = 0; i < size; i++) {
+            palette[i] = stream.readInt();
+        }
+
+        int bits = bitsFor(size);
+        int[][] grid = new int[SIZE][SIZE];
+        int buffer = 0, filled = 0;
+        for(int z = 0; z < SIZE; z++) {
+            for(int x = 0; x < SIZE; x++) {
+                if(bits == 0) {
+                    grid[z][x] = palette[0];
+                    continue;
+                }
+                while(filled < bits) {
+                    buffer = (buffer << 8) | stream.readUnsignedByte();
+                    filled += 8;
+                }
+                filled -= bits;
+                int index = buffer >>> filled;
+                buffer &= (1 << filled) - 1;
+
+                if(index >= size) throw new IOException("Palette index out of bounds: " + index);
+                grid[z][x] = palette[index];
+            }
+        }
+        return grid;
+    }
+
+    private static int bitsFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -1,12 +1,17 @@
 package com.eerussianguy.blazemap.feature.mapping;
 
 import net.minecraft.resources.ResourceKey;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.BlockPos.MutableBlockPos;
+import net.minecraft.world.level.BlockGetter;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.state.BlockState;
 
 import com.eerussianguy.blazemap.api.BlazeMapReferences;
 import com.eerussianguy.blazemap.api.builtin.TerrainHeightMD;
 import com.eerussianguy.blazemap.api.pipeline.Collector;
+import com.eerussianguy.blazemap.api.pipeline.ColumnProfile;
+import com.eerussianguy.blazemap.api.pipeline.LevelSnapshot;
 import com.eerussianguy.blazemap.api.pipeline.PipelineType;
 
 public class NetherCollector extends Collector<TerrainHeightMD> {
@@ -19,17 +24,32 @@ public class NetherCollector extends Collector<TerrainHeightMD> {
 
     @Override
     public TerrainHeightMD collect(Level level, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, level.getSeaLevel(), minX, minZ);
+    }
+
+    @Override
+    public boolean isSnapshotSafe() {
+        return true;
+    }
+
+    @Override
+    public TerrainHeightMD collect(LevelSnapshot level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, level.getSeaLevel(), minX, minZ);
+    }
+
+    private TerrainHeightMD collect(BlockGetter level, int seaLevel, int minX, int minZ) {
         final int[][] heightmap = new int[16][16];
+        final MutableBlockPos pos = new MutableBlockPos();
 
         for(int z = 0; z < 16; z++) {
             for(int x = 0; x < 16; x++) {
                 int height = 110;
-                while(isNotAir(level, minX + x, height - 1, minZ + z)) {
+                while(isNotAir(level, pos.set(minX + x, height - 1, minZ + z))) {
                     height--;
                     if(height <= level.getMinBuildHeight()) break;
                 }
                 if(height > level.getMinBuildHeight()) {
-                    while(isNotBaseStone(level, minX + x, height - 1, minZ + z)) {
+                    while(isNotBaseStone(level, pos.set(minX + x, height - 1, minZ + z))) {
                         height--;
                         if(height <= level.getMinBuildHeight()) break;
                     }
@@ -38,7 +58,7 @@ public class NetherCollector extends Collector<TerrainHeightMD> {
             }
         }
 
-        return new TerrainHeightMD(BlazeMapReferences.MasterData.NETHER, level.getMinBuildHeight(), level.getMaxBuildHeight(), level.getHeight(), level.getSeaLevel(), heightmap);
+        return new TerrainHeightMD(BlazeMapReferences.MasterData.NETHER, level.getMinBuildHeight(), level.getMaxBuildHeight(), level.getHeight(), seaLevel, heightmap);
     }
 
     @Override
@@ -46,12 +66,12 @@ public class NetherCollector extends Collector<TerrainHeightMD> {
         return dimension.equals(Level.NETHER) && super.shouldExecuteIn(dimension, pipeline);
     }
 
-    private boolean isNotAir(Level level, int x, int y, int z) {
-        return !level.getBlockState(POS.set(x, y, z)).isAir();
+    private boolean isNotAir(BlockGetter level, BlockPos pos) {
+        return !level.getBlockState(pos).isAir();
     }
 
-    private boolean isNotBaseStone(Level level, int x, int y, int z) {
-        BlockState state = level.getBlockState(POS.set(x, y, z));
+    private boolean isNotBaseStone(BlockGetter level, BlockPos pos) {
+        BlockState state = level.getBlockState(pos);
         return !state.getMaterial().isSolid();
     }
 }
@@ -1,10 +1,13 @@
 package com.eerussianguy.blazemap.feature.mapping;
 
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.LevelHeightAccessor;
 
 import com.eerussianguy.blazemap.api.BlazeMapReferences;
 import com.eerussianguy.blazemap.api.builtin.TerrainHeightMD;
 import com.eerussianguy.blazemap.api.pipeline.Collector;
+import com.eerussianguy.blazemap.api.pipeline.ColumnProfile;
+import com.eerussianguy.blazemap.api.pipeline.LevelSnapshot;
 
 public class TerrainHeightCollector extends Collector<TerrainHeightMD> {
 
@@ -17,6 +20,20 @@ public class TerrainHeightCollector extends Collector<TerrainHeightMD> {
 
     @Override
     public TerrainHeightMD collect(Level level, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, level.getSeaLevel(), new ColumnProfile().reset(level, minX, minZ));
+    }
+
+    @Override
+    public boolean isSnapshotSafe() {
+        return true;
+    }
+
+    @Override
+    public TerrainHeightMD collect(LevelSnapshot level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, level.getSeaLevel(), columns);
+    }
+
+    private TerrainHeightMD collect(LevelHeightAccessor level, int seaLevel, ColumnProfile columns) {
         final int[][] heightmapTerrain = new int[16][16];
         // final int[][] heightmapSurface = new int[16][16];
         // final int[][] heightmapOpaque = new int[16][16];
@@ -24,13 +41,8 @@ public class TerrainHeightCollector extends Collector<TerrainHeightMD> {
 
         final int minBuildHeight = level.getMinBuildHeight();
 
-        int blockX;
-        int blockZ;
-
         for(int z = 0; z < 16; z++) {
             for(int x = 0; x < 16; x++) {
-                blockX = x + minX;
-                blockZ = z + minZ;
                 /** 
                  * Collect heights of the highest and lowest block that can be seen.
                  * (Primarily for shadow implementation)
@@ -41,7 +53,7 @@ public class TerrainHeightCollector extends Collector<TerrainHeightMD> {
                  * Now collect base terrain height.
                  * This ignores non-terrain blocks such as trees and other plantlife
                  */
-                int height = findSurfaceBelowVegetation(level, blockX, blockZ, false);
+                int height = columns.getFloor(x, z);
 
                 // Note: The + 1 here is for legacy reasons. Will make it somebody else's decision
                 // wether or not to remove it and possibly make other visual adjustments instead.
@@ -55,7 +67,7 @@ public class TerrainHeightCollector extends Collector<TerrainHeightMD> {
             minBuildHeight,
             level.getMaxBuildHeight(),
             level.getHeight(),
-            level.getSeaLevel(),
+            seaLevel,
             heightmapTerrain
         );
     }
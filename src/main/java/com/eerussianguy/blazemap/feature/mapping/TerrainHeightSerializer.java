@@ -10,7 +10,7 @@ import com.eerussianguy.blazemap.api.pipeline.MasterDatum;
 import com.eerussianguy.blazemap.api.util.MinecraftStreams;
 
 public class TerrainHeightSerializer implements DataType<TerrainHeightMD> {
-    private final BlazeRegistry.Key<?> id;
+    private final BlazeRegistry.Key<DataType<MasterDatum>> id;
 
     public TerrainHeightSerializer(BlazeRegistry.Key<DataType<MasterDatum>> id) {
         this.id = id;
@@ -50,6 +50,25 @@ public class TerrainHeightSerializer implements DataType<TerrainHeightMD> {
         return new TerrainHeightMD(id, minY, maxY, height, sea, heightmap);
     }
 
+    /** The key is left out, it's always the one this serializer was registered with. */
+    @Override
+    public void serializeCompact(MinecraftStreams.Output stream, TerrainHeightMD terrain) throws IOException {
+        stream.writeSignedVarInt(terrain.minY);
+        stream.writeSignedVarInt(terrain.maxY);
+        stream.writeSignedVarInt(terrain.height);
+        stream.writeSignedVarInt(terrain.sea);
+        GridEncoding.writeDeltas(stream, terrain.heightmap);
+    }
+
+    @Override
+    public TerrainHeightMD deserializeCompact(MinecraftStreams.Input stream) throws IOException {
+        int minY = stream.readSignedVarInt();
+        int maxY = stream.readSignedVarInt();
+        int height = stream.readSignedVarInt();
+        int sea = stream.readSignedVarInt();
+        return new TerrainHeightMD(id, minY, maxY, height, sea, GridEncoding.readDeltas(stream));
+    }
+
     @Override
     public BlazeRegistry.Key<?> getID() {
         return id;
@@ -41,6 +41,12 @@ public class TerrainIsolinesLayer extends Layer {
         );
     }
 
+    /** Lines a pixel wide would just fade out when averaged. */
+    @Override
+    public boolean supportsDownsampling() {
+        return false;
+    }
+
     @Override
     public boolean renderTile(NativeImage tile, TileResolution resolution, DataSource data, int xGridOffset, int zGridOffset) {
         TerrainHeightMD terrain = (TerrainHeightMD) data.get(BlazeMapReferences.MasterData.TERRAIN_HEIGHT);
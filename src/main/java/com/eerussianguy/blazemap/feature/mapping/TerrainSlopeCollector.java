@@ -1,8 +1,12 @@
 package com.eerussianguy.blazemap.feature.mapping;
 
+import java.util.function.IntBinaryOperator;
+
 import com.eerussianguy.blazemap.api.BlazeMapReferences;
 import com.eerussianguy.blazemap.api.builtin.TerrainSlopeMD;
 import com.eerussianguy.blazemap.api.pipeline.Collector;
+import com.eerussianguy.blazemap.api.pipeline.ColumnProfile;
+import com.eerussianguy.blazemap.api.pipeline.LevelSnapshot;
 import com.eerussianguy.blazemap.lib.Transparency;
 import com.eerussianguy.blazemap.lib.Transparency.CompositionState;
 import com.eerussianguy.blazemap.lib.Transparency.TransparencyState;
@@ -10,6 +14,7 @@ import com.eerussianguy.blazemap.lib.Transparency.BlockComposition;
 
 import net.minecraft.core.Direction;
 import net.minecraft.core.BlockPos.MutableBlockPos;
+import net.minecraft.world.level.BlockGetter;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.levelgen.Heightmap;
@@ -31,16 +36,39 @@ public class TerrainSlopeCollector extends Collector<TerrainSlopeMD> {
 
     @Override
     public TerrainSlopeMD collect(Level level, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, (x, z) -> level.getHeight(Heightmap.Types.MOTION_BLOCKING, x, z), new ColumnProfile().reset(level, minX, minZ), minX, minZ);
+    }
+
+    @Override
+    public boolean isSnapshotSafe() {
+        return true;
+    }
+
+    @Override
+    public TerrainSlopeMD collect(LevelSnapshot level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level, (x, z) -> level.getHeight(Heightmap.Types.MOTION_BLOCKING, x, z), columns, minX, minZ);
+    }
+
+    // Level and LevelSnapshot only share BlockGetter, so the MOTION_BLOCKING heightmap comes in separately
+    private TerrainSlopeMD collect(BlockGetter level, IntBinaryOperator heightmapTop, ColumnProfile columns, int minX, int minZ) {
         // For the 16 x 16 chunk + 2 blocks on either side
         // TODO: Once BME-198 completed, can remove calls into neighbouring chunks
         final Height[][] heightmap = new Height[20][20];
         final int[][] highestHeightmap = new int[20][20];
         final int[][] lowestHeightmap = new int[20][20];
         final float[][] opacityMap = new float[20][20];
+        final MutableBlockPos blockPos = miscReusablePos.get();
 
         for(int z = -2; z < 18; z++) {
             for(int x = -2; x < 18; x++) {
-                heightmap[z + 2][x + 2] = getHeight(level, minX + x, minZ + z, POS);
+                if(x >= 0 && x < 16 && z >= 0 && z < 16) {
+                    // Inside the chunk the shared column scan already has everything
+                    highestHeightmap[z + 2][x + 2] = columns.getHeightmap(x, z) - 1;
+                    lowestHeightmap[z + 2][x + 2] = columns.getOpaqueHeight(x, z);
+                    opacityMap[z + 2][x + 2] = columns.getCoverOpacity(x, z);
+                    continue;
+                }
+                heightmap[z + 2][x + 2] = getHeight(level, heightmapTop.applyAsInt(minX + x, minZ + z), minX + x, minZ + z, blockPos);
                 highestHeightmap[z + 2][x + 2] = heightmap[z + 2][x + 2].highestHeight;
                 lowestHeightmap[z + 2][x + 2] = heightmap[z + 2][x + 2].lowestHeight;
                 opacityMap[z + 2][x + 2] = heightmap[z + 2][x + 2].totalOpacity;
@@ -54,8 +82,8 @@ public class TerrainSlopeCollector extends Collector<TerrainSlopeMD> {
     }
 
 
-    protected static Height getHeight(Level level, int x, int z, MutableBlockPos blockPos) {
-        int height = level.getHeight(Heightmap.Types.MOTION_BLOCKING, x, z) - 1;
+    protected static Height getHeight(BlockGetter level, int heightmapTop, int x, int z, MutableBlockPos blockPos) {
+        int height = heightmapTop - 1;
         int highestHeight = height;
 
         blockPos.set(x, height, z);
@@ -93,7 +121,7 @@ public class TerrainSlopeCollector extends Collector<TerrainSlopeMD> {
         int[][] highestHeightmap,
         int[][] lowestHeightmap,
         float[][] opacityMap,
-        Level level,
+        BlockGetter level,
         int minX, int minZ
     ) {
         final float[][] slopemap = new float[16][16];
@@ -138,10 +166,10 @@ public class TerrainSlopeCollector extends Collector<TerrainSlopeMD> {
                     topSlope = topSlope * Math.max(opacityMap[zOffset][xOffset], OPACITY_MIN);
 
                     // Combine the two cases
-                    slopemap[z][x] = baseSlope + topSlope;
+                    slopemap[z][x] = TerrainSlopeMD.quantize(baseSlope + topSlope);
 
                 } else {
-                    slopemap[z][x] = topSlope;
+                    slopemap[z][x] = TerrainSlopeMD.quantize(topSlope);
                 }
 
             }
@@ -155,7 +183,7 @@ public class TerrainSlopeCollector extends Collector<TerrainSlopeMD> {
         int[][] thisHeightmap,
         int[][] adjacentHeightmap,
         float[][] opacityMap,
-        Level level,
+        BlockGetter level,
         int x, int z,
         int minX, int minZ
     ) {
@@ -238,7 +266,7 @@ public class TerrainSlopeCollector extends Collector<TerrainSlopeMD> {
         int blockHeight,
         int adjacentHeight,
         int oppositeHeight,
-        Level level,
+        BlockGetter level,
         int x, int z,
         int dx, int dz,
         boolean isPrimaryShadow
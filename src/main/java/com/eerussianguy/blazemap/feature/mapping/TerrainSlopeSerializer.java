@@ -31,6 +31,30 @@ public class TerrainSlopeSerializer implements DataType<TerrainSlopeMD> {
         return new TerrainSlopeMD(slopemap);
     }
 
+    /** Slopes are already quantized by the collector, so this loses nothing. */
+    @Override
+    public void serializeCompact(MinecraftStreams.Output stream, TerrainSlopeMD terrain) throws IOException {
+        int[][] steps = new int[16][16];
+        for(int z = 0; z < 16; z++) {
+            for(int x = 0; x < 16; x++) {
+                steps[z][x] = TerrainSlopeMD.toSteps(terrain.slopemap[z][x]);
+            }
+        }
+        GridEncoding.writeDeltas(stream, steps);
+    }
+
+    @Override
+    public TerrainSlopeMD deserializeCompact(MinecraftStreams.Input stream) throws IOException {
+        int[][] steps = GridEncoding.readDeltas(stream);
+        float[][] slopemap = new float[16][16];
+        for(int z = 0; z < 16; z++) {
+            for(int x = 0; x < 16; x++) {
+                slopemap[z][x] = TerrainSlopeMD.fromSteps(steps[z][x]);
+            }
+        }
+        return new TerrainSlopeMD(slopemap);
+    }
+
     @Override
     public BlazeRegistry.Key<?> getID() {
         return BlazeMapReferences.MasterData.TERRAIN_SLOPE;
@@ -5,6 +5,8 @@ import net.minecraft.world.level.Level;
 import com.eerussianguy.blazemap.api.BlazeMapReferences;
 import com.eerussianguy.blazemap.api.builtin.WaterLevelMD;
 import com.eerussianguy.blazemap.api.pipeline.Collector;
+import com.eerussianguy.blazemap.api.pipeline.ColumnProfile;
+import com.eerussianguy.blazemap.api.pipeline.LevelSnapshot;
 
 public class WaterLevelCollector extends Collector<WaterLevelMD> {
 
@@ -18,28 +20,28 @@ public class WaterLevelCollector extends Collector<WaterLevelMD> {
 
     @Override
     public WaterLevelMD collect(Level level, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level.getSeaLevel(), new ColumnProfile().reset(level, minX, minZ));
+    }
+
+    @Override
+    public boolean isSnapshotSafe() {
+        return true;
+    }
+
+    @Override
+    public WaterLevelMD collect(LevelSnapshot level, ColumnProfile columns, int minX, int minZ, int maxX, int maxZ) {
+        return collect(level.getSeaLevel(), columns);
+    }
 
-        int blockX;
-        int blockZ;
+    private WaterLevelMD collect(int seaLevel, ColumnProfile columns) {
         final int[][] water = new int[16][16];
 
         for(int z = 0; z < 16; z++) {
             for(int x = 0; x < 16; x++) {
-                blockX = x + minX;
-                blockZ = z + minZ;
-
-                int depth = 0;
-                int height = findSurfaceBelowVegetation(level, blockX, blockZ, true);
-
-                while(isWater(level, blockX, height - depth, blockZ)) {
-                    depth++;
-                    if(height - depth < level.getMinBuildHeight()) break;
-                }
-
-                water[z][x] = depth;
+                water[z][x] = columns.getWaterDepth(x, z);
             }
         }
 
-        return new WaterLevelMD(level.getSeaLevel(), water);
+        return new WaterLevelMD(seaLevel, water);
     }
 }
@@ -39,4 +39,16 @@ public class WaterLevelSerializer implements DataType<WaterLevelMD> {
 
         return new WaterLevelMD(sea, level);
     }
+
+    @Override
+    public void serializeCompact(MinecraftStreams.Output stream, WaterLevelMD water) throws IOException {
+        stream.writeSignedVarInt(water.sea);
+        GridEncoding.writeDeltas(stream, water.level);
+    }
+
+    @Override
+    public WaterLevelMD deserializeCompact(MinecraftStreams.Input stream) throws IOException {
+        int sea = stream.readSignedVarInt();
+        return new WaterLevelMD(sea, GridEncoding.readDeltas(stream));
+    }
 }
@@ -49,7 +49,7 @@ public class WorldMapGui extends Screen implements MapHost, FragmentHost {
     private static final ResourceLocation ICON = BlazeMap.resource("textures/mod_icon.png");
     private static final ResourceLocation NAME = BlazeMap.resource("textures/mod_name.png");
     private static final ResourceLocation SCALE = BlazeMap.resource("textures/scale.png");
-    public static final double MIN_ZOOM = 0.125, MAX_ZOOM = 8;
+    public static final double MIN_ZOOM = 0.03125, MAX_ZOOM = 8;
     private static final Profiler.TimeProfiler renderTime = new Profiler.TimeProfilerSync("world_map_render", 10);
     private static final Profiler.TimeProfiler uploadTime = new Profiler.TimeProfilerSync("world_map_upload", 10);
     private static boolean showWidgets = true, renderDebug = false;
@@ -110,8 +110,8 @@ public class FTBChunksOverlay extends Overlay {
 
         @Override
         public int getPixel(int x, int z) {
-            int chunkX = x / resolution.chunkWidth;
-            int chunkZ = z / resolution.chunkWidth;
+            int chunkX = x * resolution.chunksPerPixel / resolution.chunkWidth;
+            int chunkZ = z * resolution.chunksPerPixel / resolution.chunkWidth;
             Team team = claims[chunkX + CHUNK_OFFSET][chunkZ + CHUNK_OFFSET];
 
             // Unclaimed, no need to do all the math.
@@ -144,13 +144,12 @@ public class FTBChunksOverlay extends Overlay {
          * - No edges (pixel is in the center of the chunk)
          * - One edge (x4)
          * - Two edges (corner pixel) (x4)
-         * - All edges (scale is 1:16 and the pixel covers the entire chunk
+         * - All edges (scale is 1:16 or coarser and the pixel covers the entire chunk)
          * No illegal values can be returned by this function.
          */
         private byte getPixelEdges(int x, int z) {
             // The algorithm after this would produce the same result, this just saves doing the math.
-            // There actually isn't a TileResolution of 1:16 YET (at the time of this writing), but future proofing.
-            // There is no need to prepare for 1:32 or above because 1:16 is the current hard limit of what the engine can do.
+            // At 1:32 and beyond the pixel covers several chunks, it goes by the top left one's edges.
             if(resolution.chunkWidth == 1) return EDGE_ALL;
 
             int blockX = x % resolution.chunkWidth;
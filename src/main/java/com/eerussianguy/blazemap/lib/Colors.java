@@ -25,6 +25,23 @@ public class Colors {
         return 0xFF000000 | interpolate(bottom, 0, top, 1, point);
     }
 
+    /**
+     * Average of 4 colors, used to shrink tiles by half. Colors are weighted by their alpha (averaged premultiplied,
+     * then unpremultiplied), otherwise transparent pixels would pull their neighbours' colors towards black.
+     */
+    public static int average(int a, int b, int c, int d) {
+        int wa = a >>> 24, wb = b >>> 24, wc = c >>> 24, wd = d >>> 24;
+        int alpha = wa + wb + wc + wd;
+        if(alpha == 0) return 0;
+
+        int pixel = ((alpha + 2) >> 2) << 24;
+        for(int shift = 0; shift < 24; shift += 8) {
+            int sum = ((a >>> shift) & 0xFF) * wa + ((b >>> shift) & 0xFF) * wb + ((c >>> shift) & 0xFF) * wc + ((d >>> shift) & 0xFF) * wd;
+            pixel |= ((sum + alpha / 2) / alpha) << shift;
+        }
+        return pixel;
+    }
+
     public static int interpolate(int color1, float key1, int color2, float key2, float point) {
         point = (point - key1) / (key2 - key1);
         int b0 = interpolate((color1 >> 24) & 0xFF, (color2 >> 24) & 0xFF, point);
@@ -9,7 +9,7 @@ import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.tags.FluidTags;
 import net.minecraft.tags.TagKey;
-import net.minecraft.world.level.Level;
+import net.minecraft.world.level.BlockGetter;
 import net.minecraft.world.level.block.AbstractGlassBlock;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.HalfTransparentBlock;
@@ -218,9 +218,12 @@ public class Transparency {
         return false;
     }
 
-    public static BlockComposition getBlockComposition(BlockState state, Level level, BlockPos pos) {
+    public static BlockComposition getBlockComposition(BlockState state, BlockGetter level, BlockPos pos) {
         // The Level and BlockPos shouldn't actually matter to the final result
         // but are required by Mojang to get the BlockState's shape
+        // Plain get first, as the capturing lambda would otherwise be allocated on every single lookup
+        BlockComposition composition = knownBlocks.get(state);
+        if(composition != null) return composition;
         return knownBlocks.computeIfAbsent(state, (s) -> {
             return new BlockComposition(s, level, pos);
         });
@@ -254,7 +257,7 @@ public class Transparency {
         public final TransparencyState fluidTransparencyLevel;
         public final CompositionState compositionState;
 
-        public BlockComposition(BlockState state, Level level, BlockPos pos) {
+        public BlockComposition(BlockState state, BlockGetter level, BlockPos pos) {
             // Short circuit on air block.
             if (state.isAir()) {
                 this.blockTransparencyLevel = TransparencyState.AIR;
@@ -5,8 +5,10 @@ import java.util.function.Function;
 public class AsyncChainRoot {
     final IThreadQueue gameThreadQueue;
     final IThreadQueue dataThreadQueue;
+    private final AsyncDataCruncher cruncher;
 
     public AsyncChainRoot(AsyncDataCruncher asyncDataCruncher, IThreadQueue gameThreadQueue) {
+        this.cruncher = asyncDataCruncher;
         this.dataThreadQueue = asyncDataCruncher::submit;
         this.gameThreadQueue = gameThreadQueue;
     }
@@ -35,6 +37,15 @@ public class AsyncChainRoot {
         dataThreadQueue.submit(r);
     }
 
+    public void runOnDataThread(Runnable r, AsyncDataCruncher.Lane lane) {
+        cruncher.submit(r, lane);
+    }
+
+    /** Run the first count tasks in parallel on the data threads, and wait for all of them. */
+    public void runAllOnDataThreads(Runnable[] tasks, int count) {
+        cruncher.invokeAll(tasks, count, AsyncDataCruncher.Lane.PIPELINE);
+    }
+
 
 
     private static class AsyncChainDummyItem extends AsyncChainItem<Void, Void> {
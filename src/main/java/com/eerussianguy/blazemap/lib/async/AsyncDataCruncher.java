@@ -1,38 +1,91 @@
 package com.eerussianguy.blazemap.lib.async;
 
-import java.util.LinkedList;
+import java.util.Deque;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 
+/**
+ * Pool of data crunching threads with work stealing and priority lanes.
+ *
+ * Tasks submitted from outside the pool go into a shared queue for their lane, tasks submitted by a worker go into that
+ * worker's own deque, where it picks them up newest first while idle workers steal them oldest first. Workers always
+ * look for work in lane order, so interactive work jumps ahead of pipeline work, which jumps ahead of persistence.
+ * Every so often a worker looks in reverse order instead, so that lower lanes can't be starved forever.
+ */
 public final class AsyncDataCruncher {
-    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    public enum Lane {
+        /** Things the player is looking at right now, like tiles the map needs to draw. */
+        INTERACTIVE,
+        /** Regular pipeline processing. The default. */
+        PIPELINE,
+        /** Saving things to disk and other background work that can wait. */
+        PERSISTENCE
+    }
+
+    private static final Lane[] LANES = Lane.values();
+    private static final int STARVATION_INTERVAL = 32;
+
+    private final Worker[] workers;
+    private final Queue<Task>[] shared;
+    private final AtomicInteger[] depth;
+    private final LaneStats[] stats;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasWork = lock.newCondition();
     private volatile boolean running = true;
-    private final Object mutex = new Object();
-    private final LinkedList<Thread> threads = new LinkedList<>();
 
+    @SuppressWarnings("unchecked")
     public AsyncDataCruncher(String name, Logger logger) {
+        shared = new Queue[LANES.length];
+        depth = new AtomicInteger[LANES.length];
+        stats = new LaneStats[LANES.length];
+        for(int i = 0; i < LANES.length; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            depth[i] = new AtomicInteger();
+            stats[i] = new LaneStats();
+        }
+
         int cores = Runtime.getRuntime().availableProcessors();
         logger.info("Starting {} {} AsyncDataCruncher Threads", cores, name);
+        workers = new Worker[cores];
         for(int i = 0; i < cores; i++) {
-            Thread thread = new Thread(this::loop);
-            thread.setName(name + " AsyncDataCruncher #" + i);
-            thread.setDaemon(true);
-            thread.setPriority(7);
-            thread.start();
-            threads.add(thread);
-            logger.info("Started {}", thread.getName());
+            workers[i] = new Worker(name + " AsyncDataCruncher #" + i, i);
+        }
+        for(Worker worker : workers) {
+            worker.start();
+            logger.info("Started {}", worker.getName());
         }
         logger.info("Started {} {} AsyncDataCruncher Threads", cores, name);
     }
 
     public int poolSize() {
-        return threads.size();
+        return workers.length;
+    }
+
+    /** Tasks currently waiting in the given lane. */
+    public int queueDepth(Lane lane) {
+        return depth[lane.ordinal()].get();
+    }
+
+    /** Rolling average of how long tasks in the given lane waited before starting, in milliseconds. */
+    public double averageWait(Lane lane) {
+        return stats[lane.ordinal()].average() / 1_000_000D;
+    }
+
+    /** Longest time a task in the given lane waited before starting, out of the recent ones, in milliseconds. */
+    public double maxWait(Lane lane) {
+        return stats[lane.ordinal()].max() / 1_000_000D;
     }
 
     public void assertIsOnDataCruncherThread() {
-        if(!threads.contains(Thread.currentThread())) {
+        if(!(Thread.currentThread() instanceof Worker worker) || worker.owner() != this) {
             throw new IllegalStateException("Operation can only be performed in the AsyncDataCruncher thread");
         }
     }
@@ -43,37 +96,217 @@ public final class AsyncDataCruncher {
 
     public void stop() {
         running = false;
+        lock.lock();
+        try {
+            hasWork.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     public void submit(Runnable r) {
-        tasks.add(r);
-        synchronized(mutex) {
-            mutex.notify();
+        submit(r, Lane.PIPELINE);
+    }
+
+    public void submit(Runnable r, Lane lane) {
+        Task task = new Task(r, lane.ordinal(), System.nanoTime());
+        if(Thread.currentThread() instanceof Worker worker && worker.owner() == this) {
+            worker.local[task.lane].addFirst(task);
+        }
+        else {
+            shared[task.lane].add(task);
+        }
+        depth[task.lane].incrementAndGet();
+        pending.incrementAndGet();
+
+        // Idle workers register before checking for pending work, so either they see our task or we see them.
+        if(idle.get() > 0) {
+            lock.lock();
+            try {
+                hasWork.signal();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Run all the tasks in parallel and return once they're all done, rethrowing the first exception any of them threw.
+     * The calling thread works through the tasks too and only ever waits for tasks other threads are already running,
+     * so this is safe to call from inside the pool.
+     */
+    public void invokeAll(Runnable[] tasks, int count, Lane lane) {
+        if(count <= 0) return;
+        if(count == 1) {
+            tasks[0].run();
+            return;
+        }
+
+        ForkGroup group = new ForkGroup(tasks, count);
+        for(int i = 1; i < count; i++) {
+            submit(group::help, lane);
+        }
+        group.help();
+        group.await();
+    }
+
+    private Task take(Worker self, boolean reverse) {
+        for(int i = 0; i < LANES.length; i++) {
+            int lane = reverse ? LANES.length - 1 - i : i;
+
+            Task task = self.local[lane].pollFirst();
+            if(task == null) task = shared[lane].poll();
+            if(task == null) task = steal(self, lane);
+
+            if(task != null) {
+                depth[lane].decrementAndGet();
+                pending.decrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private Task steal(Worker self, int lane) {
+        int start = self.index;
+        for(int i = 1; i < workers.length; i++) {
+            Worker victim = workers[(start + i) % workers.length];
+            Task task = victim.local[lane].pollLast();
+            if(task != null) return task;
         }
+        return null;
     }
 
-    private void loop() {
-        while(running) {
-            this.work();
+    private void awaitWork() {
+        lock.lock();
+        try {
+            idle.incrementAndGet();
             try {
-                synchronized(mutex) {
-                    mutex.wait();
+                while(running && pending.get() == 0) {
+                    hasWork.await();
+                }
+            }
+            finally {
+                idle.decrementAndGet();
+            }
+        }
+        catch(InterruptedException ex) {
+            // We can't tolerate interrupts on the worker threads as that messes up with java.nio
+            // The runtime exception helps us realize if it is happening
+            throw new RuntimeException(ex);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private record Task(Runnable runnable, int lane, long submitted) {}
+
+    private static final class ForkGroup {
+        private final Runnable[] tasks;
+        private final int count;
+        private final AtomicInteger next = new AtomicInteger();
+        private int finished;
+        private Throwable error;
+
+        private ForkGroup(Runnable[] tasks, int count) {
+            this.tasks = tasks;
+            this.count = count;
+        }
+
+        /** Claim and run tasks until there are none left. Helpers that show up late find nothing and leave. */
+        private void help() {
+            int index;
+            while((index = next.getAndIncrement()) < count) {
+                Throwable thrown = null;
+                try {tasks[index].run();}
+                catch(Throwable t) {thrown = t;}
+
+                synchronized(this) {
+                    if(thrown != null && error == null) error = thrown;
+                    if(++finished == count) notifyAll();
                 }
             }
-            catch(InterruptedException ex) {
-                // We can't tolerate interrupts on the worker threads as that messes up with java.nio
-                // The runtime exception helps us realize if it is happening
-                throw new RuntimeException(ex);
+        }
+
+        private synchronized void await() {
+            while(finished < count) {
+                try {
+                    wait();
+                }
+                catch(InterruptedException ex) {
+                    // Same as the worker loop, interrupts are not tolerated here
+                    throw new RuntimeException(ex);
+                }
             }
+            if(error instanceof RuntimeException ex) throw ex;
+            if(error instanceof Error err) throw err;
+            if(error != null) throw new RuntimeException(error);
         }
     }
 
-    private void work() {
-        while(!tasks.isEmpty()) {
-            Runnable task = tasks.poll();
-            if(task == null) continue;
-            try {task.run();}
-            catch(Throwable t) {t.printStackTrace();}
+    private final class Worker extends Thread {
+        private final Deque<Task>[] local;
+        private final int index;
+
+        @SuppressWarnings("unchecked")
+        private Worker(String name, int index) {
+            super(name);
+            this.index = index;
+            this.local = new Deque[LANES.length];
+            for(int i = 0; i < LANES.length; i++) {
+                local[i] = new ConcurrentLinkedDeque<>();
+            }
+            setDaemon(true);
+            setPriority(7);
+        }
+
+        private AsyncDataCruncher owner() {
+            return AsyncDataCruncher.this;
+        }
+
+        @Override
+        public void run() {
+            int executed = 0;
+            while(running) {
+                Task task = take(this, ++executed % STARVATION_INTERVAL == 0);
+                if(task == null) {
+                    awaitWork();
+                    continue;
+                }
+
+                stats[task.lane].record(System.nanoTime() - task.submitted);
+                try {task.runnable.run();}
+                catch(Throwable t) {t.printStackTrace();}
+            }
+        }
+    }
+
+    /** Rolling window of the most recent wait times of a lane. */
+    private static final class LaneStats {
+        private final long[] roll = new long[64];
+        private int idx;
+        private int count;
+
+        synchronized void record(long wait) {
+            roll[idx] = wait;
+            idx = (idx + 1) % roll.length;
+            if(count < roll.length) count++;
+        }
+
+        synchronized long average() {
+            if(count == 0) return 0;
+            long total = 0;
+            for(int i = 0; i < count; i++) total += roll[i];
+            return total / count;
+        }
+
+        synchronized long max() {
+            long max = 0;
+            for(int i = 0; i < count; i++) max = Math.max(max, roll[i]);
+            return max;
         }
     }
 
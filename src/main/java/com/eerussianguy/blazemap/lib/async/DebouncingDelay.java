@@ -16,6 +16,16 @@ public class DebouncingDelay {
     /** Timestamp at which this task is expected to execute. Will change if touch() is called and the limit has not been reached. */
     private long executionTimestamp;
 
+    /** The task this delay belongs to. Domains keyed by objects use task, domains keyed by longs use key. */
+    Object task;
+    long key;
+
+    /** Next delay in the same DebouncingWheel slot. */
+    DebouncingDelay next;
+
+    /** Set when the task was removed from its domain but the delay is still sitting in the wheel. */
+    boolean cancelled;
+
     /**
      * Get a new DebouncingDelay.
      * If one is available in the object pool, return it; otherwise, allocate a new one.
@@ -42,6 +52,10 @@ public class DebouncingDelay {
 
         this.executionTimestamp = now + step + fuzz;
         this.latestExecutionTimestamp = now + limit + fuzz;
+        this.task = null;
+        this.key = 0;
+        this.next = null;
+        this.cancelled = false;
         return this;
     }
 
@@ -71,6 +85,8 @@ public class DebouncingDelay {
      * so as to not call any methods / make any changes in an "available" object.
      */
     public void release(){
+        this.task = null;
+        this.next = null;
         synchronized(POOL){
             if(POOL.size() < MAX_POOL){
                 POOL.add(this);
@@ -8,7 +8,7 @@ import org.slf4j.Logger;
 public class DebouncingThread {
     private final Logger logger;
     private final Thread thread;
-    private final List<DebouncingDomain<?>> domains;
+    private final List<DebouncingWheel> domains;
     private long nextTaskTimestamp = Long.MAX_VALUE;
 
     public DebouncingThread(String name, Logger logger) {
@@ -20,8 +20,8 @@ public class DebouncingThread {
         logger.info("Starting {} Debouncer Thread", name);
     }
 
-    /** Not public because this is meant to be called by DebouncingDomain only. */
-    void add(DebouncingDomain<?> domain) {
+    /** Not public because this is meant to be called by DebouncingWheel only. */
+    void add(DebouncingWheel domain) {
         synchronized(domains) {
             if(!domains.contains(domain)) {
                 domains.add(domain);
@@ -30,7 +30,7 @@ public class DebouncingThread {
     }
 
     /** Called by Cartography. Needed despite "unused", will be dealt with in BME-10 */
-    public void remove(DebouncingDomain<?> domain) {
+    public void remove(DebouncingWheel domain) {
         synchronized(domains) {
             domains.remove(domain);
         }
@@ -54,7 +54,7 @@ public class DebouncingThread {
         long nextTaskTimestamp = Long.MAX_VALUE; // When to execute next task. Start at max and find the lowest value (timestamp)
 
         synchronized(domains) {
-            for(DebouncingDomain<?> domain : domains) {
+            for(DebouncingWheel domain : domains) {
                 long nextDomainTask = domain.executePendingTasks(now); // Process all due tasks and get timestamp of next due task.
                 if(nextDomainTask < nextTaskTimestamp) nextTaskTimestamp = nextDomainTask; // find the lowest next task timestamp of all domains.
             }
@@ -0,0 +1,182 @@
+package com.eerussianguy.blazemap.lib.async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+/**
+ * Hashed timing wheel shared by all debouncing domains.
+ *
+ * Time is cut into ticks of TICK_MS and every pending DebouncingDelay is linked into the slot of the tick it is due in.
+ * Touching a delay only changes its timestamp and leaves it where it is: when its slot comes up and it turns out to be
+ * due later it simply gets linked into its new slot. That way pushing, touching and expiring are all O(1) amortized,
+ * and each wake only looks at the slots that elapsed since the last one instead of every pending task.
+ *
+ * A slot is only processed once its tick is over, so tasks run up to one tick late, never early.
+ * Delays more than a full turn of the wheel away just go around again.
+ */
+public abstract class DebouncingWheel {
+    private static final ThreadLocal<List<DebouncingDelay>> PENDING = ThreadLocal.withInitial(ArrayList::new);
+    private static final int TICK_MS = 50;
+    private static final int SLOTS = 1024; // 51.2 seconds per turn
+    private static final int MASK = SLOTS - 1;
+
+    protected final Logger logger;
+
+    /** The DebouncingThread that makes our Domain work. */
+    private final DebouncingThread debouncer;
+
+    /** Delay config: How much to delay execution each time a task is touched. Actual delay is 1-2x this */
+    protected final int delayStep;
+
+    /** Delay config: How much a task can be delayed until further delays are ignored. */
+    protected final int maxDelay;
+
+    /** Guards the wheel and the subclass' task map. */
+    protected final Object lock = new Object();
+
+    /** Head of the linked list of delays of each slot. */
+    private final DebouncingDelay[] slots = new DebouncingDelay[SLOTS];
+
+    /** Last tick that was fully processed. */
+    private long cursor;
+
+    /** Timestamp of the next expected execution of a task within this domain. */
+    private volatile long nextTaskTimestamp = Long.MAX_VALUE;
+
+    protected DebouncingWheel(DebouncingThread debouncer, int delayStep, int maxDelay, Logger logger) {
+        this.debouncer = debouncer;
+        this.delayStep = delayStep;
+        this.maxDelay = maxDelay;
+        this.logger = logger;
+        this.cursor = System.currentTimeMillis() / TICK_MS - 1;
+        debouncer.add(this);
+    }
+
+    /** Remove the delay's task from the subclass' task map. Called with the lock held. */
+    protected abstract void forget(DebouncingDelay delay);
+
+    /** Hand the delay's task to the callback. Called without the lock. */
+    protected abstract void execute(DebouncingDelay delay);
+
+    /** Must be called with the lock held, with a delay that isn't in the wheel yet. */
+    protected void schedule(DebouncingDelay delay) {
+        link(delay);
+        wakeFor(delay);
+    }
+
+    /** Must be called with the lock held, after touching a delay that is already in the wheel. */
+    protected void wakeFor(DebouncingDelay delay) {
+        long wake = (tickOf(delay) + 1) * TICK_MS;
+        if(wake < this.nextTaskTimestamp) {
+            this.nextTaskTimestamp = wake;
+            debouncer.nextTask(wake);
+        }
+    }
+
+    /** Must be called with the lock held. Drops every delay in the wheel. */
+    protected void dropAll() {
+        for(int i = 0; i < SLOTS; i++) {
+            DebouncingDelay delay = slots[i];
+            slots[i] = null;
+            while(delay != null) {
+                DebouncingDelay next = delay.next;
+                delay.release();
+                delay = next;
+            }
+        }
+        nextTaskTimestamp = Long.MAX_VALUE;
+    }
+
+    private long tickOf(DebouncingDelay delay) {
+        return Math.max(delay.getExecutionTimestamp() / TICK_MS, cursor + 1);
+    }
+
+    private void link(DebouncingDelay delay) {
+        int slot = (int) (tickOf(delay) & MASK);
+        delay.next = slots[slot];
+        slots[slot] = delay;
+    }
+
+    /** Clear the entire task queue by executing everything. Necessary for valuable work we cannot afford to lose. */
+    public void finish() {
+        // Use Long.MAX_VALUE to force execution of every task regardless of how much it has been delayed.
+        executePendingTasks(Long.MAX_VALUE);
+    }
+
+    /**
+     * Execute and remove all due tasks and return the timestamp of the next expected execution.
+     * @param now timestamp we consider as the current point in time. Any tasks due before or at this point will execute.
+     * @return timestamp of the next due execution of a task within this domain.
+     */
+    public long executePendingTasks(long now) {
+        // No pending tasks to execute, just skip work.
+        if(this.nextTaskTimestamp > now) {
+            return this.nextTaskTimestamp;
+        }
+
+        // Pending tasks to execute -- Uses a ThreadLocal ArrayList to minimize allocations and maintain thread safety.
+        List<DebouncingDelay> pending = PENDING.get();
+        boolean everything = now == Long.MAX_VALUE;
+
+        synchronized(lock) {
+            // Only ticks that are completely over, so nothing runs early
+            long lastTick = everything ? cursor + SLOTS : now / TICK_MS - 1;
+            long firstTick = Math.max(cursor + 1, lastTick - MASK);
+
+            for(long tick = firstTick; tick <= lastTick; tick++) {
+                int slot = (int) (tick & MASK);
+                DebouncingDelay delay = slots[slot];
+                slots[slot] = null;
+
+                while(delay != null) {
+                    DebouncingDelay next = delay.next;
+                    if(delay.cancelled) {
+                        delay.release();
+                    }
+                    else if(everything || delay.getExecutionTimestamp() / TICK_MS <= tick) {
+                        forget(delay);
+                        pending.add(delay);
+                    }
+                    else { // Touched since it was linked, or more than a turn away. Move it to where it belongs now.
+                        int target = (int) ((delay.getExecutionTimestamp() / TICK_MS) & MASK);
+                        delay.next = slots[target];
+                        slots[target] = delay;
+                    }
+                    delay = next;
+                }
+            }
+            if(!everything) cursor = Math.max(cursor, lastTick);
+            this.nextTaskTimestamp = findNextTask();
+        }
+
+        // Execute all pending tasks
+        for(DebouncingDelay delay : pending) {
+            try {
+                execute(delay);
+            }
+            catch(Exception e) {
+                logger.error("Exception while executing pending task. Skipping");
+                e.printStackTrace();
+            }
+            delay.release(); // Put it back in the object pool to reuse later instead of allocating a new one.
+        }
+
+        // Clear the ThreadLocal ArrayList for the next iteration in this thread.
+        pending.clear();
+
+        // Return timestamp of next task
+        return this.nextTaskTimestamp;
+    }
+
+    /** Wake up when the first occupied slot is over. At most one turn of the wheel is scanned. */
+    private long findNextTask() {
+        for(long tick = cursor + 1; tick <= cursor + SLOTS; tick++) {
+            if(slots[(int) (tick & MASK)] != null) {
+                return (tick + 1) * TICK_MS;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,74 @@
+package com.eerussianguy.blazemap.lib.async;
+
+import java.util.function.LongConsumer;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.slf4j.Logger;
+
+/**
+ * DebouncingDomain for tasks that fit in a long, like packed chunk or region positions.
+ * Keeps the tasks as primitives all the way through, so there's no boxing and no position objects kept alive.
+ */
+public class LongDebouncingDomain extends DebouncingWheel {
+    /** Map of pending tasks. Keys are the tasks themselves, values are each task's delay configuration. */
+    private final Long2ObjectOpenHashMap<DebouncingDelay> pendingTasks = new Long2ObjectOpenHashMap<>();
+
+    /** The callback that takes tasks that are due for execution. */
+    private final LongConsumer callback;
+
+    public LongDebouncingDomain(DebouncingThread debouncer, LongConsumer callback, int delayStep, int maxDelay, Logger logger) {
+        super(debouncer, delayStep, maxDelay, logger);
+        this.callback = callback;
+    }
+
+    /**
+     * Enqueue a new task, if it is not already enqueued, with a fresh delay configuration.
+     * Otherwise, if it already exists, attempt to delay the tasks further.
+     */
+    public void push(long task) {
+        synchronized(lock) {
+            DebouncingDelay delay = pendingTasks.get(task);
+            if(delay != null) {
+                wakeFor(delay.touch());
+                return;
+            }
+            delay = DebouncingDelay.get(delayStep, maxDelay).touch();
+            delay.key = task;
+            pendingTasks.put(task, delay);
+            schedule(delay);
+        }
+    }
+
+    /** Remove an existing task. */
+    public boolean remove(long task) {
+        synchronized(lock) {
+            DebouncingDelay delay = pendingTasks.remove(task);
+            if(delay == null) return false;
+            delay.cancelled = true; // The wheel will let go of it when it gets to it
+            return true;
+        }
+    }
+
+    /** Clear the entire task queue by voiding its contents. Ideal for volatile work that we can afford to lose. */
+    public void clear() {
+        synchronized(lock) {
+            pendingTasks.clear();
+            dropAll();
+        }
+    }
+
+    /** Get the size of the task queue. */
+    public int size() {
+        return pendingTasks.size();
+    }
+
+    @Override
+    protected void forget(DebouncingDelay delay) {
+        pendingTasks.remove(delay.key);
+    }
+
+    @Override
+    protected void execute(DebouncingDelay delay) {
+        callback.accept(delay.key);
+    }
+}
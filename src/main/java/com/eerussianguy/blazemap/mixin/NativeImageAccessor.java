@@ -0,0 +1,12 @@
+package com.eerussianguy.blazemap.mixin;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+/** Gives access to the address of the image's pixels, for bulk copies that don't go through get/setPixelRGBA. */
+@Mixin(NativeImage.class)
+public interface NativeImageAccessor {
+    @Accessor("pixels")
+    long blazemap$getPixels();
+}
@@ -8,6 +8,8 @@ public class Profilers {
     public static class Server {
         public static final TimeProfilerSync COLLECTOR_TIME_PROFILER = new TimeProfilerSync("server_collector", 20);
         public static final LoadProfiler COLLECTOR_LOAD_PROFILER = new LoadProfiler(20, 50);
+        public static final TimeProfilerAsync SNAPSHOT_COLLECTOR_TIME_PROFILER = new TimeProfilerAsync("server_snapshot_collector", 20);
+        public static final LoadProfiler SNAPSHOT_COLLECTOR_LOAD_PROFILER = new LoadProfiler(20, 50);
         public static final TimeProfilerAsync PROCESSOR_TIME_PROFILER = new TimeProfilerAsync("server_processor", 20);
         public static final LoadProfiler PROCESSOR_LOAD_PROFILER = new LoadProfiler(20, 50);
         public static final TimeProfilerAsync TRANSFORMER_TIME_PROFILER = new TimeProfilerAsync("server_transformer", 20);
@@ -24,6 +26,8 @@ public class Profilers {
     public static class Client {
         public static final TimeProfilerSync COLLECTOR_TIME_PROFILER = new TimeProfilerSync("client_collector", 20);
         public static final LoadProfiler COLLECTOR_LOAD_PROFILER = new LoadProfiler(20, 50);
+        public static final TimeProfilerAsync SNAPSHOT_COLLECTOR_TIME_PROFILER = new TimeProfilerAsync("client_snapshot_collector", 20);
+        public static final LoadProfiler SNAPSHOT_COLLECTOR_LOAD_PROFILER = new LoadProfiler(20, 50);
         public static final TimeProfilerAsync PROCESSOR_TIME_PROFILER = new TimeProfilerAsync("client_processor", 20);
         public static final LoadProfiler PROCESSOR_LOAD_PROFILER = new LoadProfiler(20, 50);
         public static final TimeProfilerAsync TRANSFORMER_TIME_PROFILER = new TimeProfilerAsync("client_transformer", 20);
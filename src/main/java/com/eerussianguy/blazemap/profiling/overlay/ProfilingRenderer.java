@@ -9,6 +9,8 @@ import net.minecraft.client.renderer.LightTexture;
 import net.minecraft.client.renderer.MultiBufferSource;
 
 import com.eerussianguy.blazemap.engine.BlazeMapAsync;
+import com.eerussianguy.blazemap.engine.cache.LevelMDCache;
+import com.eerussianguy.blazemap.engine.client.ChunkTilePool;
 import com.eerussianguy.blazemap.engine.client.ClientEngine;
 import com.eerussianguy.blazemap.engine.client.LayerRegionTile;
 import com.eerussianguy.blazemap.engine.server.ServerEngine;
@@ -17,6 +19,7 @@ import com.eerussianguy.blazemap.integration.KnownMods;
 import com.eerussianguy.blazemap.integration.ModIDs;
 import com.eerussianguy.blazemap.lib.Colors;
 import com.eerussianguy.blazemap.lib.Helpers;
+import com.eerussianguy.blazemap.lib.async.AsyncDataCruncher;
 import com.eerussianguy.blazemap.profiling.Profiler;
 import com.eerussianguy.blazemap.profiling.Profilers;
 import com.eerussianguy.blazemap.profiling.overlay.Container.Style;
@@ -40,12 +43,29 @@ public class ProfilingRenderer {
             new Container("Client Engine", Style.SECTION,
                 new StringSource(() -> String.format("MD Source: %s / %s", ClientEngine.isClientSource() ? "Client" : "Server", ClientEngine.getMDSource())),
                 new StringSource(() -> String.format("Parallel Pool: %d threads", BlazeMapAsync.instance().cruncher.poolSize())),
+                laneSource(AsyncDataCruncher.Lane.INTERACTIVE, "Interactive"),
+                laneSource(AsyncDataCruncher.Lane.PIPELINE, "Pipeline"),
+                laneSource(AsyncDataCruncher.Lane.PERSISTENCE, "Persistence"),
+                new StringSource(() -> {
+                    LevelMDCache.Stats stats = ClientEngine.mdCacheStats();
+                    return String.format("MD Cache: %d regions   [ %.2f / %d MB ]", stats.regions(), stats.bytes() / 1048576D, stats.budget() / 1048576L);
+                }),
+                new StringSource(() -> {
+                    LevelMDCache.Stats stats = ClientEngine.mdCacheStats();
+                    return String.format("MD Cache Hits: %d   Misses: %d   Evictions: %d   [ %.1f%% hit ]", stats.hits(), stats.misses(), stats.evictions(), stats.hitRate() * 100);
+                }, Style.BLOCK.header),
                 new StringSource(() -> {
                     double size = ((double) LayerRegionTile.getLoadedKb()) / 1024D;
                     int tiles = LayerRegionTile.getInstances();
                     String scale = "M";
                     return String.format("Layer Region Tiles: %d   [ %.2f %sB ]", tiles, size, scale);
                 }),
+                new StringSource(() -> String.format("Chunk Tiles: %d native [ %d pooled ]   [ %.2f KB ]", ChunkTilePool.getLiveImages(), ChunkTilePool.getPooledImages(), ChunkTilePool.getNativeBytes() / 1024D), Style.BLOCK.header),
+                new StringSource(() -> {
+                    int prefetched = LayerRegionTile.getPrefetched();
+                    int hits = LayerRegionTile.getPrefetchHits();
+                    return String.format("Tile Prefetch: %d loaded   %d used   [ %.1f%% hit ]", prefetched, hits, prefetched == 0 ? 0 : hits * 100D / prefetched);
+                }, Style.BLOCK.header),
                 new SubsystemProfile("Chunk Render Mixin", Profilers.Client.Mixin.RENDERCHUNK_LOAD_PROFILER, Profilers.Client.Mixin.RENDERCHUNK_TIME_PROFILER, "tick load")
                     .enable(() -> !KnownMods.isAnyLoaded(ModIDs.SODIUM_FAMILY)),
                 new SubsystemProfile("Sodium Mixin", Profilers.Client.Mixin.SODIUM_LOAD_PROFILER, Profilers.Client.Mixin.SODIUM_TIME_PROFILER, "tick load")
@@ -53,8 +73,11 @@ public class ProfilingRenderer {
             ),
             new Container("Client Pipeline", Style.SECTION,
                 new SubsystemProfile("MD Collect", Profilers.Client.COLLECTOR_LOAD_PROFILER, Profilers.Client.COLLECTOR_TIME_PROFILER, "tick load",
-                    new StringSource(() -> String.format("Dirty Chunks: %d", ClientEngine.dirtyChunks()), Style.BLOCK.header)
+                    new StringSource(() -> String.format("Dirty Chunks: %d", ClientEngine.dirtyChunks()), Style.BLOCK.header),
+                    new StringSource(() -> String.format("Collect Queue: %d   Deferred: %d [ %d total ]", ClientEngine.queuedChunks(), ClientEngine.deferredChunks(), ClientEngine.totalDeferredChunks()), Style.BLOCK.header)
                 ).enable(() -> ClientEngine.numCollectors() > 0).metric(() -> String.valueOf(ClientEngine.numCollectors())),
+                new SubsystemProfile("MD Snapshot Collect", Profilers.Client.SNAPSHOT_COLLECTOR_LOAD_PROFILER, Profilers.Client.SNAPSHOT_COLLECTOR_TIME_PROFILER, "delay")
+                    .enable(() -> ClientEngine.numCollectors() > 0),
                 new SubsystemProfile("MD Transform", Profilers.Client.TRANSFORMER_LOAD_PROFILER, Profilers.Client.TRANSFORMER_TIME_PROFILER, "delay")
                     .enable(() -> ClientEngine.numTransformers() > 0).metric(() -> String.valueOf(ClientEngine.numTransformers())),
                 new SubsystemProfile("MD Process", Profilers.Client.PROCESSOR_LOAD_PROFILER, Profilers.Client.PROCESSOR_TIME_PROFILER, "delay")
@@ -73,8 +96,11 @@ public class ProfilingRenderer {
             ),
             new Container("Server Pipelines", Style.SECTION,
                 new SubsystemProfile("MD Collect", Profilers.Server.COLLECTOR_LOAD_PROFILER, Profilers.Server.COLLECTOR_TIME_PROFILER, "tick load",
-                    new StringSource(() -> String.format("Dirty Chunks: %d", ServerEngine.dirtyChunks()), Style.BLOCK.header)
+                    new StringSource(() -> String.format("Dirty Chunks: %d", ServerEngine.dirtyChunks()), Style.BLOCK.header),
+                    new StringSource(() -> String.format("Collect Queue: %d   Deferred: %d [ %d total ]", ServerEngine.queuedChunks(), ServerEngine.deferredChunks(), ServerEngine.totalDeferredChunks()), Style.BLOCK.header)
                 ).enable(() -> ServerEngine.numCollectors() > 0).metric(() -> String.valueOf(ServerEngine.numCollectors())),
+                new SubsystemProfile("MD Snapshot Collect", Profilers.Server.SNAPSHOT_COLLECTOR_LOAD_PROFILER, Profilers.Server.SNAPSHOT_COLLECTOR_TIME_PROFILER, "delay")
+                    .enable(() -> ServerEngine.numCollectors() > 0),
                 new SubsystemProfile("MD Transform", Profilers.Server.TRANSFORMER_LOAD_PROFILER, Profilers.Server.TRANSFORMER_TIME_PROFILER, "delay")
                     .enable(() -> ServerEngine.numTransformers() > 0).metric(() -> String.valueOf(ServerEngine.numTransformers())),
                 new SubsystemProfile("MD Process", Profilers.Server.PROCESSOR_LOAD_PROFILER, Profilers.Server.PROCESSOR_TIME_PROFILER, "delay")
@@ -91,6 +117,13 @@ public class ProfilingRenderer {
         )
     );
 
+    private static StringSource laneSource(AsyncDataCruncher.Lane lane, String name) {
+        return new StringSource(() -> {
+            AsyncDataCruncher cruncher = BlazeMapAsync.instance().cruncher;
+            return String.format("%s Lane: %d queued   [ %.2f avg / %.2f max ms wait ]", name, cruncher.queueDepth(lane), cruncher.averageWait(lane), cruncher.maxWait(lane));
+        }, Style.BLOCK.header);
+    }
+
 
     // =================================================================================================================
     public static final ProfilingRenderer INSTANCE = new ProfilingRenderer();